@@ -1,7 +1,9 @@
 package org.jenkinsci.plugins.trflow;
 
 import com.google.common.collect.Collections2;
+import hudson.AbortException;
 import hudson.Extension;
+import hudson.Util;
 import hudson.Launcher;
 import hudson.maven.MavenModuleSet;
 import hudson.model.*;
@@ -63,12 +65,26 @@ public class HelloWorldBuilder extends Builder {
     private static final Hudson HUDSON = Hudson.getInstance();
     private final String branchName;
     private final String templateJobName;
+    private final boolean remoteOnly;
+    private final String remoteUrl;
+    private final String baseBranch;
+
+    public HelloWorldBuilder(String branchName, String templateJobName) {
+        this(branchName, templateJobName, false, null, null);
+    }
+
+    public HelloWorldBuilder(String branchName, String templateJobName, boolean remoteOnly) {
+        this(branchName, templateJobName, remoteOnly, null, null);
+    }
 
     // Fields in config.jelly must match the parameter names in the "DataBoundConstructor"
     @DataBoundConstructor
-    public HelloWorldBuilder(String branchName, String templateJobName) {
+    public HelloWorldBuilder(String branchName, String templateJobName, boolean remoteOnly, String remoteUrl, String baseBranch) {
         this.branchName = branchName;
         this.templateJobName = templateJobName;
+        this.remoteOnly = remoteOnly;
+        this.remoteUrl = Util.fixEmptyAndTrim(remoteUrl);
+        this.baseBranch = Util.fixEmptyAndTrim(baseBranch);
     }
 
     /**
@@ -82,6 +98,28 @@ public class HelloWorldBuilder extends Builder {
         return templateJobName;
     }
 
+    /**
+     * True to work on the GitHub repositories without checking them out.
+     */
+    public boolean isRemoteOnly() {
+        return remoteOnly;
+    }
+
+    /**
+     * URL of the superproject to work on without a workspace, so the job needs no SCM. If null, the first remote of
+     * the job's Git SCM.
+     */
+    public String getRemoteUrl() {
+        return remoteUrl;
+    }
+
+    /**
+     * Branch new branches start from when working without a workspace. If null, the default branch of the repository.
+     */
+    public String getBaseBranch() {
+        return baseBranch;
+    }
+
     @Override
     public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
         final Map<String, String> vars = build.getBuildVariables();
@@ -89,7 +127,19 @@ public class HelloWorldBuilder extends Builder {
         p.putAll(vars);
         p.list(listener.getLogger());
 
-        final TRGit git = new TRGit(build, listener, "https://api.github.com", "dcasas", "3d8e307bd9d0a8f179298d35fd6fdd5f2d57b194");
+        final TRGit git = remoteOnly
+                ? createRemoteGit(build, listener, "https://api.github.com", "dcasas", "3d8e307bd9d0a8f179298d35fd6fdd5f2d57b194")
+                : new TRGit(build, listener, "https://api.github.com", "dcasas", "3d8e307bd9d0a8f179298d35fd6fdd5f2d57b194");
+        try {
+            return perform(build, listener, vars, git);
+        } finally {
+            final String report = git.getHttpCacheReport();
+            if (report != null)
+                listener.getLogger().println(report);
+        }
+    }
+
+    private boolean perform(AbstractBuild build, BuildListener listener, Map<String, String> vars, TRGit git) throws IOException, InterruptedException {
         final JiraSite site = JiraSite.get(build.getProject());
 
 
@@ -146,6 +196,29 @@ public class HelloWorldBuilder extends Builder {
         return true;
     }
 
+    /**
+     * Returns a client that works without a workspace, on the repository and base branch of this builder, or else
+     * on the first repository and branch the job's Git SCM is configured with.
+     */
+    private TRGit createRemoteGit(AbstractBuild build, BuildListener listener, String gitHubApiUrl, String gitOrganization, String oauthToken) throws AbortException {
+        if (remoteUrl != null)
+            return new TRGit(gitHubApiUrl, gitOrganization, oauthToken, remoteUrl, baseBranch, listener.getLogger());
+
+        if (!(build.getProject().getScm() instanceof GitSCM))
+            throw new AbortException("Working without a workspace requires a repository URL on the builder, or a Git SCM on the job");
+        final GitSCM scm = (GitSCM) build.getProject().getScm();
+        final List<UserRemoteConfig> remotes = scm.getUserRemoteConfigs();
+        if (remotes.isEmpty() || Util.fixEmptyAndTrim(remotes.get(0).getUrl()) == null)
+            throw new AbortException("Working without a workspace requires a repository URL on the builder, or a remote on the job's Git SCM");
+        String base = baseBranch;
+        if (base == null && !scm.getBranches().isEmpty()) {
+            base = scm.getBranches().get(0).getName().replaceFirst("^(\\*/|refs/heads/|origin/)", "");
+            if (base.contains("*"))
+                base = null; // default branch of the repository
+        }
+        return new TRGit(gitHubApiUrl, gitOrganization, oauthToken, remotes.get(0).getUrl(), base, listener.getLogger());
+    }
+
     private void addComment(BuildListener listener, JiraSite site, String issueKey, String comment) throws IOException {
         try {
             final JiraSession jira = site.getSession();
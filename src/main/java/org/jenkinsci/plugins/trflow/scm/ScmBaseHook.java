@@ -16,4 +16,23 @@ public class ScmBaseHook<T> implements ScmHook<T> {
         return new ScmBaseHook<>();
 
     }
+
+    /**
+     * Returns a hook calling the given one under its own lock, for clients that work on several repositories at once.
+     */
+    public static <X> ScmHook<X> synchronizedHook(final ScmHook<X> hook) {
+        return new ScmHook<X>() {
+            public void before(ScmClient client, X obj) {
+                synchronized (hook) {
+                    hook.before(client, obj);
+                }
+            }
+
+            public void after(ScmClient client, X obj) {
+                synchronized (hook) {
+                    hook.after(client, obj);
+                }
+            }
+        };
+    }
 }
@@ -14,6 +14,10 @@ public interface ScmClient {
     ScmClient deleteRequest(String name);
     ScmClient deleteRequest(String name, ScmHook hook);
 
+    boolean hasBranch(String name);
+
+    boolean hasRequest(String name);
+
     String getRemoteUrl();
     String getRepositoryName();
 }
@@ -0,0 +1,128 @@
+package org.jenkinsci.plugins.trflow.scm.git;
+
+import hudson.Util;
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Facts about commits, in memory and in a directory of {@code JENKINS_HOME}, keyed by commit SHAs.
+ * <p/>
+ * What submodules a commit has, or how two commits compare, never changes. Entries are therefore never
+ * invalidated, only the least recently used ones dropped once there are too many.
+ */
+final class CommitCache<V> {
+    private static final Logger LOGGER = Logger.getLogger(CommitCache.class.getName());
+
+    /**
+     * Submodules of a repository at a commit, with the commit each one is at.
+     */
+    static final CommitCache<List<GitHubRest.Submodule>> SUBMODULES = new CommitCache<>("trflow-submodules",
+            Integer.getInteger(CommitCache.class.getName() + ".submodules.maxEntries", 1024),
+            Integer.getInteger(CommitCache.class.getName() + ".submodules.maxFiles", 8192));
+
+    /**
+     * {@code GHCompare.Status} name of two commits of a repository.
+     */
+    static final CommitCache<String> COMPARES = new CommitCache<>("trflow-compares",
+            Integer.getInteger(CommitCache.class.getName() + ".compares.maxEntries", 4096),
+            Integer.getInteger(CommitCache.class.getName() + ".compares.maxFiles", 16384));
+
+    private final String directory;
+    private final int maxFiles;
+    private final AtomicInteger writes = new AtomicInteger();
+    private final Map<String, V> memory;
+
+    private CommitCache(String directory, final int maxEntries, int maxFiles) {
+        this.directory = directory;
+        this.maxFiles = maxFiles;
+        this.memory = new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the value for the given key, or null if it is not known yet.
+     */
+    @SuppressWarnings("unchecked")
+    V get(String key) {
+        synchronized (memory) {
+            final V r = memory.get(key);
+            if (r != null)
+                return r;
+        }
+        final XmlFile file = getFile(key);
+        if (!file.exists())
+            return null;
+        try {
+            final V r = immutable((V) file.read());
+            file.getFile().setLastModified(System.currentTimeMillis());
+            synchronized (memory) {
+                memory.put(key, r);
+            }
+            return r;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(FINE, "Ignoring unreadable " + file, e);
+            return null;
+        }
+    }
+
+    void put(String key, V value) {
+        synchronized (memory) {
+            memory.put(key, immutable(value));
+        }
+        final XmlFile file = getFile(key);
+        try {
+            file.write(value instanceof List ? new ArrayList<>((List<?>) value) : value);
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Unable to write " + file, e);
+        }
+        if (writes.incrementAndGet() % PRUNE_EVERY == 0)
+            prune();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V immutable(V value) {
+        return value instanceof List ? (V) Collections.unmodifiableList(new ArrayList<>((List<?>) value)) : value;
+    }
+
+    private XmlFile getFile(String key) {
+        return new XmlFile(Jenkins.XSTREAM, new File(getDirectory(), Util.getDigestOf(key) + ".xml"));
+    }
+
+    private File getDirectory() {
+        return new File(Jenkins.getInstance().getRootDir(), directory);
+    }
+
+    private void prune() {
+        final File[] files = getDirectory().listFiles();
+        if (files == null || files.length <= maxFiles)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return a.lastModified() < b.lastModified() ? -1 : a.lastModified() == b.lastModified() ? 0 : 1;
+            }
+        });
+        for (int i = 0; i < files.length - maxFiles; i++)
+            files[i].delete();
+    }
+
+    private static final int PRUNE_EVERY = 64;
+}
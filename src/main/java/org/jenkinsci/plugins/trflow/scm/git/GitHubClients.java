@@ -0,0 +1,120 @@
+package org.jenkinsci.plugins.trflow.scm.git;
+
+import hudson.Util;
+import jenkins.model.Jenkins;
+import org.kohsuke.github.GHRepository;
+import org.kohsuke.github.GitHub;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Controller-wide registry of GitHub clients, one per API URL and credential.
+ * <p/>
+ * A client is connected once and then shared by every {@link TRGit}, together with the login of its user and the
+ * {@link GHRepository} handles it looked up. Its HTTP connections go through one {@link GitHubHttpCache}, and are
+ * kept alive between requests by the JDK as long as the responses are read to the end.
+ */
+final class GitHubClients {
+    private static final Map<String, Client> CLIENTS = new LinkedHashMap<String, Client>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Client> eldest) {
+            return size() > MAX_CLIENTS;
+        }
+    };
+
+    private GitHubClients() {
+    }
+
+    /**
+     * Returns the client of the given GitHub API and credential, connecting it on first use.
+     */
+    static Client get(String apiUrl, String organization, String oauthToken) {
+        final String key = apiUrl + "\n" + organization + "\n" + Util.getDigestOf(String.valueOf(oauthToken));
+        synchronized (CLIENTS) {
+            Client c = CLIENTS.get(key);
+            if (c == null) {
+                final GitHubHttpCache httpCache = new GitHubHttpCache(new File(Jenkins.getInstance().getRootDir(), "github-http-cache"));
+                c = new Client(TRGit.createGitHubClient(apiUrl, organization, oauthToken, httpCache),
+                        new GitHubRest(apiUrl, oauthToken, httpCache), httpCache);
+                CLIENTS.put(key, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * A connected GitHub client and what it already looked up.
+     */
+    static final class Client {
+        private final GitHub hub;
+        private final GitHubRest rest;
+        private final GitHubHttpCache httpCache;
+        private final Map<String, GHRepository> repositories = new LinkedHashMap<String, GHRepository>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, GHRepository> eldest) {
+                return size() > MAX_REPOSITORIES;
+            }
+        };
+        private String login;
+
+        private Client(GitHub hub, GitHubRest rest, GitHubHttpCache httpCache) {
+            this.hub = hub;
+            this.rest = rest;
+            this.httpCache = httpCache;
+        }
+
+        GitHub getHub() {
+            return hub;
+        }
+
+        GitHubRest getRest() {
+            return rest;
+        }
+
+        GitHubHttpCache getHttpCache() {
+            return httpCache;
+        }
+
+        /**
+         * Login of the user the client is authenticated as, fetched once.
+         */
+        synchronized String getLogin() throws IOException {
+            if (login == null)
+                login = hub.getMyself().getLogin();
+            return login;
+        }
+
+        /**
+         * Returns the repository with the given {@code owner/name}, looked up once while it stays in the LRU.
+         */
+        GHRepository getRepository(String path) {
+            synchronized (repositories) {
+                final GHRepository r = repositories.get(path);
+                if (r != null)
+                    return r;
+            }
+            try {
+                final GHRepository r = hub.getRepository(path);
+                synchronized (repositories) {
+                    repositories.put(path, r);
+                }
+                return r;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Clients kept in the registry.
+     */
+    static final int MAX_CLIENTS = Integer.getInteger(GitHubClients.class.getName() + ".maxClients", 16);
+
+    /**
+     * Repository handles kept per client.
+     */
+    static final int MAX_REPOSITORIES = Integer.getInteger(GitHubClients.class.getName() + ".maxRepositories", 256);
+}
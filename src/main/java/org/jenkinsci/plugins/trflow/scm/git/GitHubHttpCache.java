@@ -0,0 +1,536 @@
+package org.jenkinsci.plugins.trflow.scm.git;
+
+import hudson.Util;
+import org.kohsuke.github.HttpConnector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.FINE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * {@link HttpConnector} that keeps GitHub GET responses on disk and revalidates them with {@code If-None-Match}.
+ * <p/>
+ * GitHub answers a matching ETag with an empty 304, which does not count against the rate limit. The cached
+ * response is then handed to the caller as if it came from the server, headers included, so pagination links
+ * still work.
+ * <p/>
+ * Entries are keyed by URL, credentials and {@code Accept} header. Besides the totals, the requests of a build are
+ * counted on the {@link Stats} its thread {@link #track() tracks}.
+ */
+class GitHubHttpCache implements HttpConnector {
+    private static final Logger LOGGER = Logger.getLogger(GitHubHttpCache.class.getName());
+    private static final AtomicInteger WRITES = new AtomicInteger();
+
+    private final File dir;
+    private final Stats total = new Stats();
+    private final ThreadLocal<Stats> tracked = new ThreadLocal<Stats>();
+
+    GitHubHttpCache(File dir) {
+        this.dir = dir;
+    }
+
+    public HttpURLConnection connect(URL url) throws IOException {
+        return new CachingConnection((HttpURLConnection) url.openConnection(), tracked.get());
+    }
+
+    /**
+     * Starts counting the requests made from the current thread on new counters, and returns them.
+     */
+    Stats track() {
+        final Stats stats = new Stats();
+        tracked.set(stats);
+        return stats;
+    }
+
+    /**
+     * Counts the requests made from the current thread on the given counters, e.g. from a worker of the thread that
+     * called {@link #track()}. Null stops counting them.
+     */
+    void track(Stats stats) {
+        if (stats == null)
+            tracked.remove();
+        else
+            tracked.set(stats);
+    }
+
+    /**
+     * Counters of all the requests made through this cache.
+     */
+    Stats getTotal() {
+        return total;
+    }
+
+    /**
+     * Request counters, for the whole cache or for what a build did with it.
+     */
+    static final class Stats {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong bytesSaved = new AtomicLong();
+
+        long getRequests() {
+            return requests.get();
+        }
+
+        long getHits() {
+            return hits.get();
+        }
+
+        long getBytesSaved() {
+            return bytesSaved.get();
+        }
+
+        /**
+         * One-line summary of the cache effectiveness, for the build log.
+         */
+        String getReport() {
+            final long r = requests.get(), h = hits.get();
+            return String.format("GitHub HTTP cache: %d of %d GET requests revalidated from cache (%d%%), %s not downloaded",
+                    h, r, r == 0 ? 0 : h * 100 / r, humanReadable(bytesSaved.get()));
+        }
+    }
+
+    private static String humanReadable(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return String.format("%.1f KB", bytes / 1024.0);
+        return String.format("%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    private File fileOf(String key) {
+        return new File(dir, Util.getDigestOf(key) + ".entry");
+    }
+
+    private Entry read(String key) {
+        final File f = fileOf(key);
+        if (!f.exists())
+            return null;
+        try {
+            final DataInputStream in = new DataInputStream(new FileInputStream(f));
+            try {
+                final Entry e = Entry.readFrom(in);
+                if (!key.equals(e.key))
+                    return null;
+                f.setLastModified(System.currentTimeMillis()); // least recently used entries are pruned first
+                return e;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(FINE, "Ignoring unreadable cache entry " + f, e);
+            return null;
+        }
+    }
+
+    private void write(Entry e) {
+        final File f = fileOf(e.key);
+        final File tmp = new File(f.getPath() + ".tmp");
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IOException("Unable to create " + dir);
+            final DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                e.writeTo(out);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)))
+                throw new IOException("Unable to rename " + tmp);
+        } catch (IOException x) {
+            LOGGER.log(WARNING, "Unable to write GitHub cache entry " + f, x);
+            tmp.delete();
+        }
+        if (WRITES.incrementAndGet() % PRUNE_EVERY == 0)
+            prune();
+    }
+
+    /**
+     * Deletes the least recently used entries once the cache is over {@link #MAX_SIZE}.
+     */
+    private void prune() {
+        final File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        long size = 0;
+        for (File f : files)
+            size += f.length();
+        if (size <= MAX_SIZE)
+            return;
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return a.lastModified() < b.lastModified() ? -1 : a.lastModified() == b.lastModified() ? 0 : 1;
+            }
+        });
+        for (File f : files) {
+            if (size <= MAX_SIZE * 8 / 10)
+                break;
+            final long length = f.length();
+            if (f.delete())
+                size -= length;
+        }
+    }
+
+    /**
+     * A cached response: its ETag, headers and raw body.
+     */
+    private static final class Entry {
+        final String key;
+        final String etag;
+        final Map<String, List<String>> headers;
+        final byte[] body;
+
+        Entry(String key, String etag, Map<String, List<String>> headers, byte[] body) {
+            this.key = key;
+            this.etag = etag;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeUTF(key);
+            out.writeUTF(etag);
+            int n = 0;
+            for (String name : headers.keySet())
+                if (name != null)
+                    n++;
+            out.writeInt(n);
+            for (Map.Entry<String, List<String>> h : headers.entrySet()) {
+                if (h.getKey() == null)
+                    continue; // status line
+                out.writeUTF(h.getKey());
+                out.writeInt(h.getValue().size());
+                for (String v : h.getValue())
+                    out.writeUTF(v);
+            }
+            out.writeInt(body.length);
+            out.write(body);
+        }
+
+        static Entry readFrom(DataInputStream in) throws IOException {
+            final String key = in.readUTF();
+            final String etag = in.readUTF();
+            final Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+            for (int i = in.readInt(); i > 0; i--) {
+                final String name = in.readUTF();
+                final List<String> values = new ArrayList<String>();
+                for (int j = in.readInt(); j > 0; j--)
+                    values.add(in.readUTF());
+                headers.put(name, Collections.unmodifiableList(values));
+            }
+            final byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(key, etag, Collections.unmodifiableMap(headers), body);
+        }
+    }
+
+    /**
+     * Adds {@code If-None-Match} to GET requests with a cached response, and answers a 304 with that response.
+     * Everything else goes straight to the real connection.
+     */
+    private final class CachingConnection extends HttpURLConnection {
+        private final HttpURLConnection delegate;
+        private final Stats stats;
+        private String authorization;
+        private Entry cached;
+        private boolean hit;
+        private boolean responded;
+
+        CachingConnection(HttpURLConnection delegate, Stats stats) {
+            super(delegate.getURL());
+            this.delegate = delegate;
+            this.stats = stats;
+        }
+
+        private String key() {
+            return delegate.getURL() + "\n" + Util.getDigestOf(String.valueOf(authorization)) + "\n" + delegate.getRequestProperty("Accept");
+        }
+
+        private boolean isCacheable() {
+            return "GET".equals(delegate.getRequestMethod()) && !delegate.getDoOutput();
+        }
+
+        /**
+         * Sends the request, conditionally if there is a cached response.
+         */
+        private void respond() throws IOException {
+            if (responded)
+                return;
+            responded = true;
+            if (isCacheable()) {
+                total.requests.incrementAndGet();
+                if (stats != null)
+                    stats.requests.incrementAndGet();
+                cached = read(key());
+                if (cached != null)
+                    delegate.setRequestProperty("If-None-Match", cached.etag);
+            }
+            if (delegate.getResponseCode() == HTTP_NOT_MODIFIED && cached != null) {
+                hit = true;
+                total.hits.incrementAndGet();
+                total.bytesSaved.addAndGet(cached.body.length);
+                if (stats != null) {
+                    stats.hits.incrementAndGet();
+                    stats.bytesSaved.addAndGet(cached.body.length);
+                }
+            }
+        }
+
+        @Override
+        public void connect() throws IOException {
+            respond();
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            respond();
+            return hit ? HTTP_OK : delegate.getResponseCode();
+        }
+
+        @Override
+        public String getResponseMessage() throws IOException {
+            respond();
+            return hit ? "OK" : delegate.getResponseMessage();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            respond();
+            if (hit)
+                return new ByteArrayInputStream(cached.body);
+            final InputStream in = delegate.getInputStream();
+            final String etag = delegate.getHeaderField("ETag");
+            if (!isCacheable() || etag == null || delegate.getResponseCode() != HTTP_OK)
+                return in;
+            return new Recorder(in, key(), etag, delegate.getHeaderFields());
+        }
+
+        @Override
+        public InputStream getErrorStream() {
+            return hit ? null : delegate.getErrorStream();
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            if (!hit) {
+                try {
+                    respond();
+                } catch (IOException e) {
+                    return null;
+                }
+            }
+            if (hit) {
+                for (Map.Entry<String, List<String>> h : cached.headers.entrySet())
+                    if (h.getKey().equalsIgnoreCase(name) && !h.getValue().isEmpty())
+                        return h.getValue().get(h.getValue().size() - 1);
+                return null;
+            }
+            return delegate.getHeaderField(name);
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            try {
+                respond();
+            } catch (IOException e) {
+                return Collections.emptyMap();
+            }
+            return hit ? cached.headers : delegate.getHeaderFields();
+        }
+
+        @Override
+        public String getHeaderFieldKey(int n) {
+            return hit ? null : delegate.getHeaderFieldKey(n);
+        }
+
+        @Override
+        public String getHeaderField(int n) {
+            return hit ? null : delegate.getHeaderField(n);
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            if ("Authorization".equalsIgnoreCase(key))
+                authorization = value;
+            delegate.setRequestProperty(key, value);
+        }
+
+        @Override
+        public void addRequestProperty(String key, String value) {
+            if ("Authorization".equalsIgnoreCase(key))
+                authorization = value;
+            delegate.addRequestProperty(key, value);
+        }
+
+        @Override
+        public String getRequestProperty(String key) {
+            return delegate.getRequestProperty(key);
+        }
+
+        @Override
+        public Map<String, List<String>> getRequestProperties() {
+            return delegate.getRequestProperties();
+        }
+
+        @Override
+        public void setRequestMethod(String method) throws ProtocolException {
+            delegate.setRequestMethod(method);
+        }
+
+        @Override
+        public String getRequestMethod() {
+            return delegate.getRequestMethod();
+        }
+
+        @Override
+        public void setDoOutput(boolean dooutput) {
+            delegate.setDoOutput(dooutput);
+        }
+
+        @Override
+        public boolean getDoOutput() {
+            return delegate.getDoOutput();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return delegate.getOutputStream();
+        }
+
+        @Override
+        public void setConnectTimeout(int timeout) {
+            delegate.setConnectTimeout(timeout);
+        }
+
+        @Override
+        public int getConnectTimeout() {
+            return delegate.getConnectTimeout();
+        }
+
+        @Override
+        public void setReadTimeout(int timeout) {
+            delegate.setReadTimeout(timeout);
+        }
+
+        @Override
+        public int getReadTimeout() {
+            return delegate.getReadTimeout();
+        }
+
+        @Override
+        public void setInstanceFollowRedirects(boolean followRedirects) {
+            delegate.setInstanceFollowRedirects(followRedirects);
+        }
+
+        @Override
+        public void setUseCaches(boolean usecaches) {
+            delegate.setUseCaches(usecaches);
+        }
+
+        @Override
+        public void setFixedLengthStreamingMode(int contentLength) {
+            delegate.setFixedLengthStreamingMode(contentLength);
+        }
+
+        @Override
+        public void setChunkedStreamingMode(int chunklen) {
+            delegate.setChunkedStreamingMode(chunklen);
+        }
+
+        @Override
+        public void disconnect() {
+            delegate.disconnect();
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return delegate.usingProxy();
+        }
+    }
+
+    /**
+     * Copies a 200 response body as it is read, and stores it once fully read.
+     */
+    private final class Recorder extends FilterInputStream {
+        private final String key;
+        private final String etag;
+        private final Map<String, List<String>> headers;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        Recorder(InputStream in, String key, String etag, Map<String, List<String>> headers) {
+            super(in);
+            this.key = key;
+            this.etag = etag;
+            this.headers = headers;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b < 0)
+                complete();
+            else if (copy != null)
+                record(new byte[]{(byte) b}, 0, 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n < 0)
+                complete();
+            else if (copy != null)
+                record(b, off, n);
+            return n;
+        }
+
+        private void record(byte[] b, int off, int len) {
+            if (copy.size() + len > MAX_ENTRY_SIZE)
+                copy = null; // too big to be worth caching
+            else
+                copy.write(b, off, len);
+        }
+
+        private void complete() {
+            if (copy != null)
+                write(new Entry(key, etag, headers, copy.toByteArray()));
+            copy = null;
+        }
+    }
+
+    /**
+     * Bytes of responses kept on disk before the least recently used ones are deleted.
+     */
+    static final long MAX_SIZE = Long.getLong(GitHubHttpCache.class.getName() + ".maxSize", 50 * 1024 * 1024);
+
+    /**
+     * Responses bigger than this are not cached.
+     */
+    static final int MAX_ENTRY_SIZE = Integer.getInteger(GitHubHttpCache.class.getName() + ".maxEntrySize", 4 * 1024 * 1024);
+
+    private static final int PRUNE_EVERY = 64;
+}
@@ -0,0 +1,254 @@
+package org.jenkinsci.plugins.trflow.scm.git;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Single-request GitHub calls that the github-api version we build against has no method for.
+ * <p/>
+ * Each lookup costs one request whatever the size of the repository, where the github-api equivalent lists every
+ * branch or pull request.
+ */
+class GitHubRest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Pattern OWNER_AND_NAME = Pattern.compile("^.*[/:]([^/:]+)/([^/]+?)(?:\\.git)?/?$");
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private final String apiUrl;
+    private final String oauthToken;
+    private final GitHubHttpCache httpCache;
+
+    GitHubRest(String apiUrl, String oauthToken) {
+        this(apiUrl, oauthToken, null);
+    }
+
+    /**
+     * @param httpCache opens the connections, so that lookups are revalidated from it. May be null.
+     */
+    GitHubRest(String apiUrl, String oauthToken, GitHubHttpCache httpCache) {
+        String url = apiUrl.trim();
+        while (url.endsWith("/"))
+            url = url.substring(0, url.length() - 1);
+        this.apiUrl = url;
+        this.oauthToken = oauthToken;
+        this.httpCache = httpCache;
+    }
+
+    /**
+     * True if the repository has a branch with exactly this name.
+     */
+    boolean hasBranch(String repository, String branch) throws IOException {
+        return getBranchSha(repository, branch) != null;
+    }
+
+    /**
+     * Returns the SHA of the commit the branch points to, or null if the repository has no branch with exactly this
+     * name.
+     */
+    String getBranchSha(String repository, String branch) throws IOException {
+        final Object ref = get(repository + "/git/refs/heads/" + encodePath(branch));
+        // without an exact match, GitHub returns the refs starting with the name
+        if (ref instanceof JSONObject && ("refs/heads/" + branch).equals(((JSONObject) ref).optString("ref")))
+            return ((JSONObject) ref).getJSONObject("object").getString("sha");
+        return null;
+    }
+
+    /**
+     * Creates the branch at the given commit, on the repository only.
+     */
+    void createBranch(String repository, String branch, String sha) throws IOException {
+        final JSONObject ref = new JSONObject();
+        ref.put("ref", "refs/heads/" + branch);
+        ref.put("sha", sha);
+        request("POST", repository + "/git/refs", ref);
+    }
+
+    /**
+     * Deletes the branch from the repository.
+     */
+    void deleteBranch(String repository, String branch) throws IOException {
+        if (request("DELETE", repository + "/git/refs/heads/" + encodePath(branch), null) == null)
+            throw new IOException("No branch '" + branch + "' on " + repository);
+    }
+
+    /**
+     * Returns the submodules of the repository at the given commit, with the commit each one is at.
+     * <p/>
+     * Costs two requests: {@code .gitmodules} and the recursive tree of the commit, whose gitlinks give the commits.
+     * A submodule missing from a truncated tree costs one more.
+     */
+    List<Submodule> getSubmodules(String repository, String sha) throws IOException {
+        final List<Submodule> r = new ArrayList<>();
+        final Object gitmodules = get(repository + "/contents/.gitmodules?ref=" + sha);
+        if (!(gitmodules instanceof JSONObject))
+            return r;
+        final String content = new String(Base64.decodeBase64(((JSONObject) gitmodules).getString("content")), UTF8);
+        final Map<String, String> urls = parseGitmodules(content);
+        if (urls.isEmpty())
+            return r;
+
+        final Map<String, String> gitlinks = new HashMap<>();
+        final Object tree = get(repository + "/git/trees/" + sha + "?recursive=1");
+        if (tree instanceof JSONObject && ((JSONObject) tree).optJSONArray("tree") != null) {
+            for (Object o : ((JSONObject) tree).getJSONArray("tree")) {
+                final JSONObject entry = (JSONObject) o;
+                if ("commit".equals(entry.optString("type")))
+                    gitlinks.put(entry.getString("path"), entry.getString("sha"));
+            }
+        }
+        for (Map.Entry<String, String> m : urls.entrySet()) {
+            String gitlink = gitlinks.get(m.getKey());
+            if (gitlink == null) {
+                final Object entry = get(repository + "/contents/" + encodePath(m.getKey()) + "?ref=" + sha);
+                if (entry instanceof JSONObject && "submodule".equals(((JSONObject) entry).optString("type")))
+                    gitlink = ((JSONObject) entry).getString("sha");
+            }
+            if (gitlink != null)
+                r.add(new Submodule(m.getKey(), m.getValue(), gitlink));
+        }
+        return r;
+    }
+
+    /**
+     * Returns the URL of each submodule of a {@code .gitmodules} file, by path.
+     */
+    static Map<String, String> parseGitmodules(String content) {
+        final Map<String, String> r = new LinkedHashMap<>();
+        String path = null, url = null;
+        for (String line : content.split("\\r?\\n")) {
+            line = line.trim();
+            if (line.startsWith("[")) {
+                if (path != null && url != null)
+                    r.put(path, url);
+                path = url = null;
+            } else if (line.startsWith("path") && line.indexOf('=') > 0) {
+                path = line.substring(line.indexOf('=') + 1).trim();
+            } else if (line.startsWith("url") && line.indexOf('=') > 0) {
+                url = line.substring(line.indexOf('=') + 1).trim();
+            }
+        }
+        if (path != null && url != null)
+            r.put(path, url);
+        return r;
+    }
+
+    /**
+     * A submodule: where it is, where it comes from, and the commit it is at.
+     */
+    static final class Submodule {
+        final String path;
+        final String url;
+        final String sha;
+
+        Submodule(String path, String url, String sha) {
+            this.path = path;
+            this.url = url;
+            this.sha = sha;
+        }
+    }
+
+    /**
+     * Returns the number of the open pull request from the given branch of the repository owner, or -1 if none.
+     */
+    int findOpenPullRequest(String repository, String head) throws IOException {
+        final String owner = repository.substring(0, repository.indexOf('/'));
+        final Object prs = get(repository + "/pulls?state=open&per_page=1&head=" + URLEncoder.encode(owner + ":" + head, "UTF-8"));
+        if (prs instanceof JSONArray && !((JSONArray) prs).isEmpty())
+            return ((JSONArray) prs).getJSONObject(0).getInt("number");
+        return -1;
+    }
+
+    /**
+     * GETs {@code /repos/<path>}.
+     *
+     * @return the parsed JSON, or null on 404.
+     */
+    private Object get(String path) throws IOException {
+        return request("GET", path, null);
+    }
+
+    /**
+     * Sends a request to {@code /repos/<path>}.
+     *
+     * @param body sent as JSON, may be null.
+     * @return the parsed JSON, an empty JSON object if there is no content, or null on 404.
+     */
+    private Object request(String method, String path, JSONObject body) throws IOException {
+        final URL url = new URL(apiUrl + "/repos/" + path);
+        final HttpURLConnection c = httpCache != null ? httpCache.connect(url) : (HttpURLConnection) url.openConnection();
+        c.setRequestMethod(method);
+        c.setConnectTimeout(TIMEOUT_MILLIS);
+        c.setReadTimeout(TIMEOUT_MILLIS);
+        c.setRequestProperty("Accept", "application/vnd.github.v3+json");
+        if (oauthToken != null)
+            c.setRequestProperty("Authorization", "token " + oauthToken);
+        if (body != null) {
+            final byte[] json = body.toString().getBytes(UTF8);
+            c.setDoOutput(true);
+            c.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            c.setFixedLengthStreamingMode(json.length);
+            final OutputStream out = c.getOutputStream();
+            try {
+                out.write(json);
+            } finally {
+                out.close();
+            }
+        }
+        // responses are read to the end and closed, not disconnected, so that the connection is kept alive
+        final int status = c.getResponseCode();
+        if (status / 100 != 2) {
+            final InputStream err = c.getErrorStream();
+            final String message = err != null ? read(err) : c.getResponseMessage();
+            if (status == HttpURLConnection.HTTP_NOT_FOUND)
+                return null;
+            throw new IOException(method + " " + c.getURL() + " failed with HTTP " + status + ": " + message);
+        }
+        final String response = read(c.getInputStream());
+        return response.trim().isEmpty() ? new JSONObject() : JSONSerializer.toJSON(response);
+    }
+
+    /**
+     * Returns the {@code owner/name} of a GitHub repository given its remote URL, over HTTPS or SSH.
+     */
+    static String getRepositoryPath(String remoteUrl) {
+        final Matcher m = OWNER_AND_NAME.matcher(remoteUrl.trim());
+        if (!m.matches())
+            throw new IllegalArgumentException("Not a GitHub repository URL: " + remoteUrl);
+        return m.group(1) + "/" + m.group(2);
+    }
+
+    private static String encodePath(String branch) throws IOException {
+        return URLEncoder.encode(branch, "UTF-8").replace("%2F", "/").replace("+", "%20");
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+            return new String(out.toByteArray(), UTF8);
+        } finally {
+            in.close();
+        }
+    }
+}
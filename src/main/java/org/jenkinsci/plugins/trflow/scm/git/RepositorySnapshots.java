@@ -0,0 +1,90 @@
+package org.jenkinsci.plugins.trflow.scm.git;
+
+import org.kohsuke.github.GHBranch;
+import org.kohsuke.github.GHPullRequest;
+import org.kohsuke.github.GHRepository;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.kohsuke.github.GHIssueState.OPEN;
+
+/**
+ * Short-lived cache of the branches and open pull requests of GitHub repositories, keyed by remote URL.
+ * <p/>
+ * Listing branches or pull requests is a paginated GitHub call. A snapshot is fetched on first use and reused by
+ * every {@link TRGit} of the same repository until it is {@link #TTL} old, or until {@link #invalidate(String)} is
+ * called after TRGit changed the repository itself.
+ */
+final class RepositorySnapshots {
+    private static final Map<String, Snapshot> SNAPSHOTS = new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+            return size() > MAX_REPOSITORIES;
+        }
+    };
+
+    private RepositorySnapshots() {
+    }
+
+    /**
+     * Returns the current snapshot of the repository with the given remote URL.
+     */
+    static Snapshot get(String remoteUrl) {
+        synchronized (SNAPSHOTS) {
+            Snapshot s = SNAPSHOTS.get(remoteUrl);
+            if (s == null || s.isExpired()) {
+                s = new Snapshot();
+                SNAPSHOTS.put(remoteUrl, s);
+            }
+            return s;
+        }
+    }
+
+    /**
+     * Forgets what is known about the repository with the given remote URL. The next lookup fetches it again.
+     */
+    static void invalidate(String remoteUrl) {
+        synchronized (SNAPSHOTS) {
+            SNAPSHOTS.remove(remoteUrl);
+        }
+    }
+
+    /**
+     * Branches and open pull requests of one repository, each fetched at most once.
+     */
+    static final class Snapshot {
+        private final long createdAt = System.currentTimeMillis();
+        private Map<String, GHBranch> branches;
+        private List<GHPullRequest> openPullRequests;
+
+        synchronized Map<String, GHBranch> getBranches(GHRepository repo) throws IOException {
+            if (branches == null)
+                branches = Collections.unmodifiableMap(repo.getBranches());
+            return branches;
+        }
+
+        synchronized List<GHPullRequest> getOpenPullRequests(GHRepository repo) throws IOException {
+            if (openPullRequests == null)
+                openPullRequests = Collections.unmodifiableList(repo.getPullRequests(OPEN));
+            return openPullRequests;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - createdAt > TTL;
+        }
+    }
+
+    /**
+     * Milliseconds a snapshot is reused for.
+     */
+    static final long TTL = Long.getLong(RepositorySnapshots.class.getName() + ".ttl", 60 * 1000);
+
+    /**
+     * Repositories kept in the cache.
+     */
+    static final int MAX_REPOSITORIES = Integer.getInteger(RepositorySnapshots.class.getName() + ".maxRepositories", 256);
+}
@@ -0,0 +1,226 @@
+package org.jenkinsci.plugins.trflow.scm.git;
+
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link TRGit} operation on a repository and, recursively, on its submodules.
+ * <p/>
+ * The submodules of a repository are processed concurrently on a pool shared by all builds, and the repository
+ * itself only once all of them succeeded. The outcome and duration of each repository are printed to the build log
+ * at the end.
+ */
+final class SubmoduleFanOut {
+    private static final ForkJoinPool POOL = new ForkJoinPool(Integer.getInteger(SubmoduleFanOut.class.getName() + ".parallelism", 8),
+            new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    final ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    t.setName("TRGit submodules-" + t.getPoolIndex());
+                    return t;
+                }
+            }, null, false);
+
+    private SubmoduleFanOut() {
+    }
+
+    /**
+     * The operation on a single repository.
+     */
+    interface Step {
+        /**
+         * @return what was done, for the report.
+         */
+        String apply(TRGit git);
+    }
+
+    /**
+     * Applies the step to the repository and all its submodules, and prints the report to the logger.
+     * <p/>
+     * The steps run with the authentication of the calling thread. Interrupting the calling thread aborts them: the
+     * repositories not started yet are skipped, and the running steps interrupted.
+     *
+     * @throws RuntimeException the first failure. The other repositories are still processed, except the ones
+     *                          containing a failed submodule.
+     */
+    static void run(TRGit git, String operation, Step step, PrintStream logger) {
+        final Run run = new Run(step, Jenkins.getAuthentication());
+        final long start = System.nanoTime();
+        try {
+            final Task root = new Task(git, run);
+            POOL.execute(root);
+            try {
+                root.get();
+            } catch (InterruptedException e) {
+                run.abort();
+                root.quietlyJoin();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(operation + " aborted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error)
+                    throw (Error) e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+        } finally {
+            logger.println(operation + ": " + run.results.size() + " repositories in " + millisSince(start) + " ms");
+            for (Result r : run.results)
+                logger.println(String.format("  %-30s %6d ms  %s", r.repository, r.millis, r.outcome));
+        }
+    }
+
+    private static long millisSince(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * State shared by the tasks of one {@link #run}.
+     */
+    private static final class Run {
+        final Step step;
+        final Authentication authentication;
+        final Queue<Result> results = new ConcurrentLinkedQueue<>();
+        /**
+         * Threads running a step of this run. Only interrupted while in there, under the lock of the set.
+         */
+        private final Set<Thread> running = new HashSet<>();
+        private boolean aborted;
+
+        Run(Step step, Authentication authentication) {
+            this.step = step;
+            this.authentication = authentication;
+        }
+
+        void abort() {
+            synchronized (running) {
+                aborted = true;
+                for (Thread t : running)
+                    t.interrupt();
+            }
+        }
+
+        /**
+         * Calls the step on the current thread, as the caller of {@link #run} and interruptible by {@link #abort()}.
+         */
+        <V> V call(Callable<V> step) throws Exception {
+            final Thread current = Thread.currentThread();
+            synchronized (running) {
+                if (aborted)
+                    throw new CancellationException("aborted");
+                running.add(current);
+            }
+            final SecurityContext previous = ACL.impersonate(authentication);
+            try {
+                return step.call();
+            } finally {
+                SecurityContextHolder.setContext(previous);
+                synchronized (running) {
+                    running.remove(current);
+                    if (aborted)
+                        Thread.interrupted(); // an abort must not leak into the next task of this pool thread
+                }
+            }
+        }
+    }
+
+    private static final class Task extends RecursiveTask<Void> {
+        private final TRGit git;
+        private final Run run;
+
+        Task(TRGit git, Run run) {
+            this.git = git;
+            this.run = run;
+        }
+
+        @Override
+        protected Void compute() {
+            git.trackHttpRequests();
+            final long start = System.nanoTime();
+            final List<Task> children = new ArrayList<>();
+            try {
+                for (TRGit sub : call(new Callable<List<TRGit>>() {
+                    public List<TRGit> call() {
+                        return git.getSubmodules();
+                    }
+                }))
+                    children.add(new Task(sub, run));
+            } catch (RuntimeException e) {
+                run.results.add(new Result(git.getRepositoryName(), "failed listing submodules: " + e, millisSince(start)));
+                throw e;
+            }
+
+            for (Task t : children)
+                t.fork();
+            RuntimeException failure = null;
+            int failed = 0;
+            for (int i = children.size() - 1; i >= 0; i--) {
+                try {
+                    children.get(i).join();
+                } catch (RuntimeException e) {
+                    failed++;
+                    failure = e;
+                }
+            }
+            if (failure != null) {
+                run.results.add(new Result(git.getRepositoryName(), "skipped, " + failed + " submodule(s) failed", 0));
+                throw failure;
+            }
+
+            // joining may have run tasks of other builds on this thread
+            git.trackHttpRequests();
+            final long stepStart = System.nanoTime();
+            try {
+                final String outcome = call(new Callable<String>() {
+                    public String call() {
+                        return run.step.apply(git);
+                    }
+                });
+                run.results.add(new Result(git.getRepositoryName(), outcome, millisSince(stepStart)));
+            } catch (RuntimeException e) {
+                run.results.add(new Result(git.getRepositoryName(), "failed: " + e, millisSince(stepStart)));
+                throw e;
+            }
+            return null;
+        }
+
+        private <V> V call(Callable<V> step) {
+            try {
+                return run.call(step);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static final class Result {
+        final String repository;
+        final String outcome;
+        final long millis;
+
+        Result(String repository, String outcome, long millis) {
+            this.repository = repository;
+            this.outcome = outcome;
+            this.millis = millis;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.plugins.git.GitException;
 import hudson.plugins.git.IndexEntry;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.transport.URIish;
 import org.jenkinsci.plugins.gitclient.Git;
 import org.jenkinsci.plugins.gitclient.GitClient;
@@ -25,14 +26,19 @@ import static java.util.Collections.unmodifiableSortedSet;
 import static org.jenkinsci.plugins.trflow.scm.git.BranchNameComparator.BRANCH_NAME_COMPARATOR;
 import static org.jenkinsci.plugins.trflow.scm.git.IsReleaseBranchPredicate.IS_RELEASE_BRANCH;
 import static org.kohsuke.github.GHCompare.Status.identical;
-import static org.kohsuke.github.GHIssueState.OPEN;
 
 public class TRGit implements ScmClient {
     private final GitHub hub;
     private final GitClient git;
     private final PrintStream logger;
     private final GHRepository repo;
+    private final GitHubClients.Client client;
+    private final GitHubRest rest;
+    private final GitHubHttpCache.Stats httpStats;
+    private final String remoteUrl;
     private final String repositoryName;
+    private final String repositoryPath;
+    private final String baseSha;
 
     private static final URIish ORIGIN;
 
@@ -45,19 +51,67 @@ public class TRGit implements ScmClient {
     }
 
     public TRGit(final AbstractBuild build, final BuildListener listener, String gitHubApiUrl, String gitOrganization, String oauthToken) {
-        this(createGitClient(build, listener), createGitHubClient(gitHubApiUrl, gitOrganization, oauthToken), listener.getLogger());
+        this(createGitClient(build, listener), GitHubClients.get(gitHubApiUrl, gitOrganization, oauthToken), listener.getLogger());
     }
 
     public TRGit(GitClient git, GitHub hub, PrintStream logger) {
-        this(git, hub, getRepository(hub, getRepositoryName(git)), logger);
+        this(git, hub, null, logger);
+    }
+
+    /**
+     * Counts the GitHub requests made from the calling thread, until it creates another TRGit this way.
+     */
+    TRGit(GitClient git, GitHubClients.Client client, PrintStream logger) {
+        this(git, client.getHub(), null, client, client.getHttpCache().track(), logger);
+    }
+
+    /**
+     * Works on the GitHub repository only, without a workspace: branches are created at the head of the base branch
+     * and deleted as refs, and submodules are read at that commit.
+     *
+     * @param baseBranch branch new branches start from, or null for the default branch of the repository.
+     */
+    public TRGit(String gitHubApiUrl, String gitOrganization, String oauthToken, String remoteUrl, String baseBranch, PrintStream logger) {
+        this(GitHubClients.get(gitHubApiUrl, gitOrganization, oauthToken), remoteUrl, baseBranch, logger);
+    }
+
+    private TRGit(GitHubClients.Client client, String remoteUrl, String baseBranch, PrintStream logger) {
+        this(null, remoteUrl, getBaseSha(client, remoteUrl, baseBranch), client.getHub(), null,
+                client, client.getHttpCache().track(), logger);
     }
 
     public TRGit(GitClient git, GitHub hub, GHRepository repository, PrintStream logger) {
+        this(git, hub, repository, null, null, logger);
+    }
+
+    TRGit(GitClient git, GitHub hub, GHRepository repository, GitHubClients.Client client, GitHubHttpCache.Stats httpStats, PrintStream logger) {
+        this(git, getRemoteUrl(git), null, hub, repository, client, httpStats, logger);
+    }
+
+    /**
+     * @param git workspace of the repository, or null to work on the GitHub repository only.
+     * @param repository the GitHub repository of {@code remoteUrl}, or null to look it up.
+     * @param baseSha commit the repository is at if known, e.g. from the gitlink of its superproject. Branches are
+     *                created at it when there is no workspace.
+     * @param client shared client the hub comes from, may be null. It provides single-request lookups and cached
+     *               repository handles, otherwise branches and pull requests are listed. Required without a workspace.
+     * @param httpStats counters of the requests made for this client and its submodules, may be null.
+     */
+    private TRGit(GitClient git, String remoteUrl, String baseSha, GitHub hub, GHRepository repository, GitHubClients.Client client,
+                  GitHubHttpCache.Stats httpStats, PrintStream logger) {
         this.git = git;
         this.hub = hub;
-        this.repo = repository;
+        this.client = client;
+        this.rest = client != null ? client.getRest() : null;
+        this.httpStats = httpStats;
         this.logger = logger;
-        this.repositoryName = getRepositoryName(git);
+        this.remoteUrl = remoteUrl;
+        this.baseSha = baseSha;
+        this.repositoryName = getRepositoryName(remoteUrl);
+        // the REST calls and the GHRepository must work on the same repository
+        this.repositoryPath = getRepositoryPath(hub, remoteUrl);
+        this.repo = repository != null ? repository
+                : client != null ? client.getRepository(repositoryPath) : getRepository(hub, repositoryPath);
     }
 
 
@@ -65,54 +119,85 @@ public class TRGit implements ScmClient {
         return createBranch(name, ScmBaseHook.<String>NOP());
     }
 
-    public ScmClient createBranch(String name, ScmHook<String> hook) {
-        for (TRGit subGit : getSubmodules())
-            subGit.createBranch(name, hook);
+    /**
+     * Creates the branch on the submodules, concurrently, then on this repository.
+     */
+    public ScmClient createBranch(final String name, ScmHook<String> hook) {
+        final ScmHook<String> safeHook = ScmBaseHook.synchronizedHook(hook);
+        SubmoduleFanOut.run(this, "Create branch '" + name + "'", new SubmoduleFanOut.Step() {
+            public String apply(TRGit git) {
+                return git.createOwnBranch(name, safeHook);
+            }
+        }, logger);
+        return this;
+    }
 
-        if (!getBranches().contains(name)) {
+    private String createOwnBranch(String name, ScmHook<String> hook) {
+        if (!hasBranch(name)) {
             hook.before(this, name);
             doBranch(name);
             hook.after(this, name);
-        } else
-            logger.println("branch '" + name + "' already created on repositoryName '" + repositoryName + "'. No need to create it.");
-
-        return this;
+            return "created";
+        }
+        logger.println("branch '" + name + "' already created on repositoryName '" + repositoryName + "'. No need to create it.");
+        return "already exists";
     }
 
     public ScmClient deleteBranch(String name) {
         return deleteBranch(name, ScmBaseHook.<String>NOP());
     }
 
-    public ScmClient deleteBranch(String name, ScmHook<String> hook) {
-        for (TRGit subGit : getSubmodules())
-            subGit.deleteBranch(name, hook);
+    /**
+     * Deletes the branch from the submodules, concurrently, then from this repository.
+     */
+    public ScmClient deleteBranch(final String name, ScmHook<String> hook) {
+        final ScmHook<String> safeHook = ScmBaseHook.synchronizedHook(hook);
+        SubmoduleFanOut.run(this, "Delete branch '" + name + "'", new SubmoduleFanOut.Step() {
+            public String apply(TRGit git) {
+                return git.deleteOwnBranch(name, safeHook);
+            }
+        }, logger);
+        return this;
+    }
 
-        if (getBranches().contains(name)) {
+    private String deleteOwnBranch(String name, ScmHook<String> hook) {
+        if (hasBranch(name)) {
             hook.before(this, name);
             doDeleteBranch(name);
             hook.after(this, name);
-        } else
-            logger.println("branch '" + name + "' does not exists on repositoryName '" + repositoryName + "'. No need to delete it.");
-
-        return this;
+            return "deleted";
+        }
+        logger.println("branch '" + name + "' does not exists on repositoryName '" + repositoryName + "'. No need to delete it.");
+        return "does not exist";
     }
 
     public ScmClient releaseBranch(String name, String description) {
         return releaseBranch(name, description, ScmBaseHook.<String>NOP());
     }
 
-    public ScmClient releaseBranch(String name, String description, ScmHook<String> hook) {
-        for (TRGit subGit : getSubmodules())
-            subGit.releaseBranch(name, description, hook);
+    /**
+     * Opens the pull requests of the branch on the submodules, concurrently, then on this repository.
+     */
+    public ScmClient releaseBranch(final String name, final String description, ScmHook<String> hook) {
+        final ScmHook<String> safeHook = ScmBaseHook.synchronizedHook(hook);
+        SubmoduleFanOut.run(this, "Release branch '" + name + "'", new SubmoduleFanOut.Step() {
+            public String apply(TRGit git) {
+                return git.releaseOwnBranch(name, description, safeHook);
+            }
+        }, logger);
+        return this;
+    }
 
-        if (!identical.equals(compareBranches(name, getCurrentReleaseBranch()))) {
+    private String releaseOwnBranch(String name, String description, ScmHook<String> hook) {
+        final String release = getCurrentReleaseBranch();
+        if (!identical.equals(compareBranches(name, release))) {
             hook.before(this, name);
-            doCreatePullRequest(name, description);
+            final GHPullRequest pr = doCreatePullRequest(name, description);
             hook.after(this, name);
-        } else
-            logger.println("Branches '" + name + "' and '" + getCurrentReleaseBranch() + "' on repository " + getRepositoryName(git) + " are identical. No need to create a pull request.");
-
-        return this;
+            return "pull request #" + pr.getNumber();
+        }
+        logger.println("Branches '" + name + "' and '" + release + "' on repository " + repositoryName + " are identical. No need to create a pull request.");
+        return "identical to '" + release + "'";
     }
 
     public ScmClient deleteRequest(String name) {
@@ -123,15 +208,62 @@ public class TRGit implements ScmClient {
         return this;
     }
 
+    /**
+     * Clients of the submodules of the repository. The submodules of a commit are looked up once, then read from the
+     * {@link CommitCache}.
+     */
     public List<TRGit> getSubmodules() {
+        final String sha = getHeadSha();
+        List<GitHubRest.Submodule> submodules = CommitCache.SUBMODULES.get(remoteUrl + "@" + sha);
+        if (submodules == null) {
+            submodules = git == null ? getRemoteSubmodules() : getLocalSubmodules();
+            CommitCache.SUBMODULES.put(remoteUrl + "@" + sha, submodules);
+        }
+
         List<TRGit> clnts = new ArrayList<>();
-        for (IndexEntry m : getGitSubmodules()) {
-            final GitClient subgit = git.subGit(m.getFile());
-            clnts.add(new TRGit(subgit, hub, getRepository(hub, getRepositoryName(subgit)), logger));
+        for (GitHubRest.Submodule m : submodules) {
+            final String url = resolveSubmoduleUrl(remoteUrl, m.url); // entries cached before URLs were resolved
+            clnts.add(new TRGit(git != null ? git.subGit(m.path) : null, url, m.sha, hub, null, client, httpStats, logger));
         }
         return clnts;
     }
 
+    /**
+     * True if this client works on the GitHub repository only, without a workspace.
+     */
+    public boolean isRemoteOnly() {
+        return git == null;
+    }
+
+    /**
+     * Counts the GitHub requests made from the current thread on the counters of this client, if it has any.
+     */
+    void trackHttpRequests() {
+        if (client != null)
+            client.getHttpCache().track(httpStats);
+    }
+
+    /**
+     * True if the repository has this branch. One request when the REST endpoint is known, whatever the number of
+     * branches.
+     */
+    public boolean hasBranch(String name) {
+        if (rest == null)
+            return getBranches().contains(name);
+        try {
+            return rest.hasBranch(repositoryPath, name);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * True if there is an open pull request from this branch.
+     */
+    public boolean hasRequest(String name) {
+        return findOpenPullRequest(name) != null;
+    }
+
     public String getCurrentReleaseBranch() {
         return getReleaseBranches().last();
     }
@@ -155,12 +287,34 @@ public class TRGit implements ScmClient {
     }
 
     public String getRemoteUrl() {
-        return getRemoteUrl(git);
+        return remoteUrl;
     }
 
+    /**
+     * How many GitHub requests of this client and its submodules were answered from the HTTP cache, or null if it
+     * does not use one.
+     */
+    public String getHttpCacheReport() {
+        return httpStats != null ? httpStats.getReport() : null;
+    }
+
+    /**
+     * Branches of the repository, from the {@link RepositorySnapshots} cache.
+     */
     protected Map<String, GHBranch> getGitBranches() {
         try {
-            return repo.getBranches();
+            return RepositorySnapshots.get(remoteUrl).getBranches(repo);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Open pull requests of the repository, from the {@link RepositorySnapshots} cache.
+     */
+    protected List<GHPullRequest> getOpenPullRequests() {
+        try {
+            return RepositorySnapshots.get(remoteUrl).getOpenPullRequests(repo);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -173,44 +327,142 @@ public class TRGit implements ScmClient {
 
         String base = releases.last(); //CONVENTION: the most recent release created is the only release in dev phase!.
 
-        for (GHPullRequest pr : repo.listPullRequests(OPEN)) {
-            if (head.equals(pr.getHead().getLabel())) {
-                logger.println("Pull request already exists. Nothing to do");
-                return pr;
-            }
+        final GHPullRequest existing = findOpenPullRequest(head);
+        if (existing != null) {
+            logger.println("Pull request already exists. Nothing to do");
+            return existing;
         }
-        logger.println("Creating a pull request from '" + head + "' to '" + base + "' on repository " + getRepositoryName(git));
+        logger.println("Creating a pull request from '" + head + "' to '" + base + "' on repository " + repositoryName);
         try {
             return repo.createPullRequest("Please merge " + head + " into '" + base + "'", head, base, description);
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            RepositorySnapshots.invalidate(remoteUrl);
         }
     }
 
-    private GHCompare.Status compareBranches(String head, String base) {
+    /**
+     * Returns the open pull request from the given branch, or null if there is none.
+     */
+    protected GHPullRequest findOpenPullRequest(String head) {
         try {
-            return repo.getCompare(getGitBranches().get(head), getGitBranches().get(base)).getStatus();
+            if (rest != null) {
+                final int number = rest.findOpenPullRequest(repositoryPath, head);
+                return number < 0 ? null : repo.getPullRequest(number);
+            }
+            for (GHPullRequest pr : getOpenPullRequests()) {
+                if (head.equals(pr.getHead().getRef()))
+                    return pr;
+            }
+            return null;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Compares the heads of the two branches, the way {@code repo.getCompare(head, base)} does.
+     * <p/>
+     * With a workspace that has both remote-tracking refs, the comparison is done locally. Otherwise only the heads
+     * are looked up when the same commits were compared before: the result is kept in the {@link CommitCache}.
+     * The build log tells which way was taken.
+     */
+    private GHCompare.Status compareBranches(String head, String base) {
+        try {
+            final String how;
+            GHCompare.Status status = git != null ? compareLocally(head, base) : null;
+            if (status != null) {
+                how = "locally";
+            } else {
+                final String headSha = getBranchSha(head), baseSha = getBranchSha(base);
+                final String key = remoteUrl + "@" + headSha + "..." + baseSha;
+                final String cached = headSha != null && baseSha != null ? CommitCache.COMPARES.get(key) : null;
+                if (cached != null) {
+                    status = GHCompare.Status.valueOf(cached);
+                    how = "from the compare cache";
+                } else if (headSha != null && baseSha != null) {
+                    status = repo.getCompare(headSha, baseSha).getStatus();
+                    CommitCache.COMPARES.put(key, status.name());
+                    how = "through the GitHub API";
+                } else {
+                    status = repo.getCompare(head, base).getStatus();
+                    how = "through the GitHub API";
+                }
+            }
+            logger.println("Compared '" + head + "' and '" + base + "' on repository " + repositoryName + " " + how + ": " + status);
+            return status;
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Compares the remote-tracking refs of the two branches in the workspace, with rev-list counts.
+     *
+     * @return null if the workspace lacks one of the refs.
+     */
+    private GHCompare.Status compareLocally(String head, String base) throws InterruptedException {
+        final ObjectId from = resolveRemoteBranch(head), to = resolveRemoteBranch(base);
+        if (from == null || to == null)
+            return null;
+        if (from.equals(to))
+            return identical;
+        final boolean ahead = !git.revList(from.name() + ".." + to.name()).isEmpty();
+        final boolean behind = !git.revList(to.name() + ".." + from.name()).isEmpty();
+        return ahead && behind ? GHCompare.Status.diverged : ahead ? GHCompare.Status.ahead : GHCompare.Status.behind;
+    }
+
+    /**
+     * Returns the commit of {@code origin/<name>} in the workspace, or null if it was not fetched.
+     */
+    private ObjectId resolveRemoteBranch(String name) throws InterruptedException {
+        try {
+            return git.revParse("refs/remotes/origin/" + name);
+        } catch (GitException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the commit the branch points to, or null if there is no such branch. Looked up with a single request
+     * when the REST endpoint is known, otherwise taken from the branches snapshot.
+     */
+    private String getBranchSha(String name) throws IOException {
+        if (rest != null)
+            return rest.getBranchSha(repositoryPath, name);
+        final GHBranch branch = getGitBranches().get(name);
+        return branch != null ? branch.getSHA1() : null;
+    }
+
     protected void doBranch(String name) {
         try {
-            git.branch(name);
-            git.push().ref(name).to(ORIGIN).execute();
-        } catch (InterruptedException e) {
+            if (git == null) {
+                rest.createBranch(repositoryPath, name, baseSha);
+            } else {
+                git.branch(name);
+                git.push().ref(name).to(ORIGIN).execute();
+            }
+        } catch (IOException | InterruptedException e) {
             throw new RuntimeException(e);
+        } finally {
+            RepositorySnapshots.invalidate(remoteUrl);
         }
         logger.println("branch '" + name + "' created on repositoryName '" + repositoryName + "'.");
     }
 
     protected void doDeleteBranch(String name) {
         try {
-            git.deleteBranch(name);
-            git.push().ref(name).to(ORIGIN).execute();
-        } catch (InterruptedException e) {
+            if (git == null) {
+                rest.deleteBranch(repositoryPath, name);
+            } else {
+                git.deleteBranch(name);
+                git.push().ref(name).to(ORIGIN).execute();
+            }
+        } catch (IOException | InterruptedException e) {
             throw new RuntimeException(e);
+        } finally {
+            RepositorySnapshots.invalidate(remoteUrl);
         }
         logger.println("branch '" + name + "' deleted on repositoryName '" + repositoryName + "'.");
     }
@@ -223,9 +475,82 @@ public class TRGit implements ScmClient {
         }
     }
 
-    protected static GHRepository getRepository(GitHub hub, String project) {
+    /**
+     * Commit the repository is at: the one a submodule was found at, or else the workspace HEAD.
+     */
+    protected String getHeadSha() {
+        if (baseSha != null)
+            return baseSha;
         try {
-            return hub.getRepository(getOrganization(hub) + "/" + project);
+            return git.revParse("HEAD").name();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Submodules of the workspace, with their remote URL.
+     */
+    protected List<GitHubRest.Submodule> getLocalSubmodules() {
+        final List<GitHubRest.Submodule> r = new ArrayList<>();
+        for (IndexEntry m : getGitSubmodules())
+            r.add(new GitHubRest.Submodule(m.getFile(), getRemoteUrl(git.subGit(m.getFile())), m.getObject()));
+        return r;
+    }
+
+    /**
+     * Submodules of the repository at the base commit, read from GitHub, with their URL resolved.
+     */
+    protected List<GitHubRest.Submodule> getRemoteSubmodules() {
+        try {
+            final List<GitHubRest.Submodule> r = new ArrayList<>();
+            for (GitHubRest.Submodule m : rest.getSubmodules(repositoryPath, baseSha))
+                r.add(new GitHubRest.Submodule(m.path, resolveSubmoduleUrl(remoteUrl, m.url), m.sha));
+            return r;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Resolves a submodule URL relative to the superproject one, as git does: each {@code ../} drops a segment.
+     */
+    static String resolveSubmoduleUrl(String superprojectUrl, String url) {
+        if (!url.startsWith("./") && !url.startsWith("../"))
+            return url;
+        String base = superprojectUrl.replaceFirst("/+$", "");
+        String relative = url;
+        while (true) {
+            if (relative.startsWith("./")) {
+                relative = relative.substring(2);
+            } else if (relative.startsWith("../")) {
+                relative = relative.substring(3);
+                base = base.substring(0, Math.max(0, Math.max(base.lastIndexOf('/'), base.lastIndexOf(':'))));
+            } else {
+                return base + (base.endsWith(":") ? "" : "/") + relative;
+            }
+        }
+    }
+
+    private static String getBaseSha(GitHubClients.Client client, String remoteUrl, String baseBranch) {
+        try {
+            final String path = getRepositoryPath(client.getHub(), remoteUrl);
+            final String branch = baseBranch != null ? baseBranch : client.getRepository(path).getMasterBranch();
+            final String sha = client.getRest().getBranchSha(path, branch);
+            if (sha == null)
+                throw new IllegalArgumentException("No branch '" + branch + "' on " + remoteUrl);
+            return sha;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param path owner and name of the repository, see {@link #getRepositoryPath(GitHub, String)}.
+     */
+    protected static GHRepository getRepository(GitHub hub, String path) {
+        try {
+            return hub.getRepository(path);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -239,8 +564,24 @@ public class TRGit implements ScmClient {
         }
     }
 
+    /**
+     * Returns the {@code owner/name} of the GitHub repository of the remote URL. If the URL does not tell, the
+     * repository of that name of the authenticated user.
+     */
+    protected static String getRepositoryPath(GitHub hub, String remoteUrl) {
+        try {
+            return GitHubRest.getRepositoryPath(remoteUrl);
+        } catch (IllegalArgumentException e) {
+            return getOrganization(hub) + "/" + getRepositoryName(remoteUrl);
+        }
+    }
+
     protected static String getRepositoryName(GitClient git) {
-        return getRemoteUrl(git).replaceFirst("^.*/([^/]+).git$", "$1");
+        return getRepositoryName(getRemoteUrl(git));
+    }
+
+    private static String getRepositoryName(String remoteUrl) {
+        return remoteUrl.replaceFirst("^.*/([^/]+).git$", "$1");
     }
 
     protected static String getRemoteUrl(GitClient git) {
@@ -260,8 +601,18 @@ public class TRGit implements ScmClient {
     }
 
     protected static GitHub createGitHubClient(String apiUrl, String organization, String oauthToken) {
+        return createGitHubClient(apiUrl, organization, oauthToken, null);
+    }
+
+    /**
+     * @param connector opens the HTTP connections of the client, may be null for plain ones.
+     */
+    protected static GitHub createGitHubClient(String apiUrl, String organization, String oauthToken, HttpConnector connector) {
         try {
-            return GitHub.connectToEnterprise(apiUrl, organization, oauthToken);
+            final GitHub hub = GitHub.connectToEnterprise(apiUrl, organization, oauthToken);
+            if (connector != null)
+                hub.setConnector(connector);
+            return hub;
         } catch (Throwable t) {
             throw new UnableToCreateGitHubClient(t);
         }
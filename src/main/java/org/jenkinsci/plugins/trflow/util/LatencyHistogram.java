@@ -0,0 +1,85 @@
+package org.jenkinsci.plugins.trflow.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the spirit of HdrHistogram.
+ * <p/>
+ * Values are recorded in microseconds. Every power of two is split into {@value #SUB_BUCKETS} linear sub-buckets,
+ * so percentiles are accurate to about 6% from 1&micro;s up to several days, in a fixed 8KB of counters.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAGNITUDES = 64 - SUB_BUCKET_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(MAGNITUDES * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        recordMicros(TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos)));
+    }
+
+    public void recordSince(long startNanos) {
+        recordNanos(System.nanoTime() - startNanos);
+    }
+
+    public void recordMicros(long micros) {
+        counts.incrementAndGet(indexOf(micros));
+        count.incrementAndGet();
+        sumMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros))
+            max = maxMicros.get();
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSumMicros() {
+        return sumMicros.get();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * Returns the value below which the given fraction (0..1) of the recorded values fall, in microseconds.
+     * Concurrent updates may be partially reflected.
+     */
+    public long getPercentileMicros(double fraction) {
+        final long total = count.get();
+        if (total == 0)
+            return 0;
+        final long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), maxMicros.get());
+        }
+        return maxMicros.get();
+    }
+
+    private static int indexOf(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        final int magnitude = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS + 1;
+        final int sub = (int) (micros >>> (magnitude - 1)) & (SUB_BUCKETS - 1);
+        return magnitude * SUB_BUCKETS + sub;
+    }
+
+    private static long highestValueOf(int index) {
+        final int magnitude = index / SUB_BUCKETS;
+        final int sub = index % SUB_BUCKETS;
+        if (magnitude == 0)
+            return sub;
+        return (((long) (SUB_BUCKETS + sub)) << (magnitude - 1)) + (1L << (magnitude - 1)) - 1;
+    }
+}
@@ -0,0 +1,22 @@
+package org.jenkinsci.plugins.trflow.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads named {@code <prefix>-<n>} so they are easy to spot in thread dumps.
+ */
+public class NamedDaemonThreadFactory implements ThreadFactory {
+    private final String prefix;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    public NamedDaemonThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public Thread newThread(Runnable r) {
+        final Thread t = new Thread(r, prefix + "-" + counter.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    }
+}
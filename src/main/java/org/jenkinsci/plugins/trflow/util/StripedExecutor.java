@@ -0,0 +1,115 @@
+package org.jenkinsci.plugins.trflow.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a fixed number of single-threaded lanes chosen by key.
+ * <p/>
+ * Tasks submitted with the same key always land on the same lane, so they run one at a time and in arrival order.
+ * Tasks with unrelated keys are spread over the lanes and run in parallel.
+ */
+public class StripedExecutor {
+    private final List<Lane> lanes;
+
+    public StripedExecutor(String name, int lanes) {
+        final List<Lane> l = new ArrayList<Lane>(lanes);
+        for (int i = 0; i < lanes; i++)
+            l.add(new Lane(name + "-lane-" + i));
+        this.lanes = Collections.unmodifiableList(l);
+    }
+
+    public void execute(Object key, Runnable task) {
+        laneFor(key).execute(task);
+    }
+
+    protected Lane laneFor(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+        h ^= (h >>> 16); // spread the high bits, keys are often short strings sharing a prefix
+        return lanes.get((h & 0x7fffffff) % lanes.size());
+    }
+
+    public List<Lane> getLanes() {
+        return lanes;
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes)
+            depth += lane.getQueueDepth();
+        return depth;
+    }
+
+    /**
+     * Stops accepting tasks. Tasks already queued still run.
+     */
+    public void shutdown() {
+        for (Lane lane : lanes)
+            lane.executor.shutdown();
+    }
+
+    /**
+     * A single-threaded lane, with the time its tasks spent waiting to run.
+     */
+    public static final class Lane {
+        private final String name;
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong executed = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        Lane(String name) {
+            this.name = name;
+            this.executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedDaemonThreadFactory(name));
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        void execute(final Runnable task) {
+            final long queued = System.nanoTime();
+            executor.execute(new Runnable() {
+                public void run() {
+                    recordWait(System.nanoTime() - queued);
+                    task.run();
+                }
+            });
+        }
+
+        private void recordWait(long nanos) {
+            executed.incrementAndGet();
+            totalWaitNanos.addAndGet(nanos);
+            long max = maxWaitNanos.get();
+            while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos))
+                max = maxWaitNanos.get();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getQueueDepth() {
+            return executor.getQueue().size();
+        }
+
+        public long getExecuted() {
+            return executed.get();
+        }
+
+        public long getTotalWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+        }
+
+        public long getMaxWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+        }
+
+        public long getAverageWaitMillis() {
+            final long n = executed.get();
+            return n == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / n);
+        }
+    }
+}
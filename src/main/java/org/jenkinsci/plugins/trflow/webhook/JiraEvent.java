@@ -3,28 +3,123 @@ package org.jenkinsci.plugins.trflow.webhook;
 import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 
+/**
+ * Immutable, compact Jira webhook event. See {@link JiraIssue} for why no part of the payload is retained.
+ */
 public class JiraEvent {
 
     private final JiraEventType type;
     private final JiraIssue issue;
-    private boolean changed;
+    private final boolean changed;
+    private final int mergedEvents;
+    private final transient String site;
+    private final transient long sequence;
+    private final transient long receivedNanos;
 
     protected JiraEvent(JSONObject o) {
-        type = JiraEventType.valueOfFromId(o.getString("webhookEvent"));
-        issue = new JiraIssue(o.getJSONObject("issue"));
-
+        boolean changed = false;
+        String previousStatus = null;
         final JSONArray items = o.getJSONObject("changelog").getJSONArray("items");
         for (int i = 0; i < items.size(); i++) {
             final JSONObject item = (JSONObject) items.get(i);
-            changed = changed || ("status".equals(item.getString("field")) && !item.getString("from").equals(item.getString("to")));
+            if ("status".equals(item.getString("field")) && !item.getString("from").equals(item.getString("to"))) {
+                changed = true;
+                previousStatus = item.optString("fromString", null);
+            }
         }
+
+        this.type = JiraEventType.valueOfFromId(o.getString("webhookEvent"));
+        this.issue = new JiraIssue(o.getJSONObject("issue")).withPreviousStatus(previousStatus);
+        this.changed = changed;
+        this.mergedEvents = 1;
+        this.site = site(o.getJSONObject("issue").optString("self", null));
+        this.sequence = 0;
+        this.receivedNanos = System.nanoTime();
+    }
+
+    protected JiraEvent(JiraEventType type, JiraIssue issue, boolean statusChanged) {
+        this(type, issue, statusChanged, null);
+    }
+
+    /**
+     * Creates an event from the values extracted by {@link JiraEventReader}.
+     *
+     * @param site see {@link #getSite()}.
+     */
+    protected JiraEvent(JiraEventType type, JiraIssue issue, boolean statusChanged, String site) {
+        this(type, issue, statusChanged, 1, site, 0);
+    }
+
+    JiraEvent(JiraEventType type, JiraIssue issue, boolean statusChanged, int mergedEvents, String site, long sequence) {
+        this(type, issue, statusChanged, mergedEvents, site, sequence, System.nanoTime());
+    }
+
+    private JiraEvent(JiraEventType type, JiraIssue issue, boolean statusChanged, int mergedEvents, String site, long sequence, long receivedNanos) {
+        this.type = type;
+        this.issue = issue;
+        this.changed = statusChanged;
+        this.mergedEvents = mergedEvents;
+        this.site = site;
+        this.sequence = sequence;
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * Creates the event that stands for {@code mergedEvents} events of the same issue, {@code first} and {@code latest}
+     * being the first and last of them. The issue moved from the status it had before {@code first} to the status
+     * it has after {@code latest}.
+     */
+    protected JiraEvent(JiraEvent first, JiraEvent latest, int mergedEvents) {
+        this.type = latest.type;
+        this.issue = latest.issue.withPreviousStatus(first.issue.getPreviousStatus());
+        this.changed = latest.changed;
+        this.mergedEvents = mergedEvents;
+        this.site = latest.site;
+        this.sequence = latest.sequence;
+        this.receivedNanos = first.receivedNanos;
+    }
+
+    /**
+     * Returns this event as recorded under the given {@link JiraEventJournal} sequence number.
+     */
+    JiraEvent withSequence(long sequence) {
+        return new JiraEvent(type, issue, changed, mergedEvents, site, sequence, receivedNanos);
+    }
+
+    /**
+     * Base URL of the Jira the issue belongs to, e.g. {@code https://jira.example.com}, or null if unknown.
+     */
+    String getSite() {
+        return site;
+    }
+
+    /**
+     * The base URL of Jira in the given issue or REST API URL, without trailing slash.
+     */
+    static String site(String url) {
+        if (url == null)
+            return null;
+        String site = url.trim();
+        final int rest = site.indexOf("/rest/api/");
+        if (rest >= 0)
+            site = site.substring(0, rest);
+        while (site.endsWith("/"))
+            site = site.substring(0, site.length() - 1);
+        return site.isEmpty() ? null : site;
     }
 
-    //TODO: implement proper changelog domain
     public boolean hasStatusChanged() {
         return changed;
     }
 
+    /**
+     * The status change in the changelog of this event, or null if the status did not change.
+     * For coalesced events, from the status before the first merged event to the status after the last one.
+     */
+    public JiraStatusTransition getTransition() {
+        return changed ? new JiraStatusTransition(issue.getPreviousStatus(), issue.getStatus()) : null;
+    }
+
     public JiraEventType getType() {
         return type;
     }
@@ -33,6 +128,27 @@ public class JiraEvent {
         return issue;
     }
 
+    /**
+     * Number of Jira events coalesced into this one. 1 unless a burst of events for the same issue was merged.
+     */
+    public int getMergedEvents() {
+        return mergedEvents;
+    }
+
+    /**
+     * Sequence number of this event in the {@link JiraEventJournal}, or 0 if it was not journaled.
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * {@link System#nanoTime()} when this event was read, or when the first of the events merged into it was.
+     */
+    long getReceivedNanos() {
+        return receivedNanos;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -53,4 +169,8 @@ public class JiraEvent {
         return result;
     }
 
+    @Override
+    public String toString() {
+        return type + " " + issue;
+    }
 }
@@ -0,0 +1,147 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import hudson.model.Api;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerProxy;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size, lock-free ring buffer of the last events received by {@link JiraWebHook}, one compact summary each.
+ * <p/>
+ * Browsable at {@code jira-webhook/audit/}, and as JSON or XML at {@code jira-webhook/audit/api/}.
+ */
+@ExportedBean
+public class JiraEventAudit implements StaplerProxy {
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+
+    JiraEventAudit(int size) {
+        final int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+        this.entries = new AtomicReferenceArray<Entry>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    void record(String key, String type, JiraStatusTransition transition, String decision, long startNanos) {
+        final Entry e = new Entry(System.currentTimeMillis(), key, type, transition != null ? transition.toString() : null,
+                decision, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+        entries.set((int) (next.getAndIncrement() & mask), e);
+    }
+
+    void record(JiraEvent event, String decision, long startNanos) {
+        record(event.getIssue().getKey(), event.getType() != null ? event.getType().toString() : null, event.getTransition(), decision, startNanos);
+    }
+
+    /**
+     * The recorded events, newest first.
+     */
+    @Exported(inline = true)
+    public List<Entry> getEntries() {
+        final long last = next.get();
+        final int n = (int) Math.min(last, entries.length());
+        final List<Entry> r = new ArrayList<Entry>(n);
+        for (long i = last - 1; i >= last - n; i--) {
+            final Entry e = entries.get((int) (i & mask));
+            if (e != null)
+                r.add(e);
+        }
+        return r;
+    }
+
+    /**
+     * Events recorded since Jenkins started, including the ones overwritten since.
+     */
+    @Exported
+    public long getRecorded() {
+        return next.get();
+    }
+
+    @Exported
+    public int getCapacity() {
+        return entries.length();
+    }
+
+    public Api getApi() {
+        return new Api(this);
+    }
+
+    public Object getTarget() {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        return this;
+    }
+
+    /**
+     * Summary of one event: what it was, what the webhook decided, and how long that took.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Entry {
+        private final long timestamp;
+        private final String key;
+        private final String type;
+        private final String transition;
+        private final String decision;
+        private final long latencyMicros;
+
+        Entry(long timestamp, String key, String type, String transition, String decision, long latencyMicros) {
+            this.timestamp = timestamp;
+            this.key = key;
+            this.type = type;
+            this.transition = transition;
+            this.decision = decision;
+            this.latencyMicros = latencyMicros;
+        }
+
+        @Exported
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Date getTime() {
+            return new Date(timestamp);
+        }
+
+        @Exported
+        public String getKey() {
+            return key;
+        }
+
+        @Exported
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * Status transition, e.g. {@code In Progress -> In Review}, or null if the status did not change.
+         */
+        @Exported
+        public String getTransition() {
+            return transition;
+        }
+
+        @Exported
+        public String getDecision() {
+            return decision;
+        }
+
+        /**
+         * Time from receiving the event to the decision.
+         */
+        @Exported
+        public long getLatencyMicros() {
+            return latencyMicros;
+        }
+    }
+
+    /**
+     * Number of events kept, rounded up to a power of two.
+     */
+    public static final int SIZE = Integer.getInteger(JiraEventAudit.class.getName() + ".size", 512);
+}
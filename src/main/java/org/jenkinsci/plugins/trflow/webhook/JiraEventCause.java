@@ -1,5 +1,6 @@
 package org.jenkinsci.plugins.trflow.webhook;
 
+import hudson.Util;
 import hudson.model.*;
 
 public class JiraEventCause extends Cause {
@@ -23,9 +24,21 @@ public class JiraEventCause extends Cause {
         return event.getIssue();
     }
 
+    JiraEvent getEvent() {
+        return event;
+    }
+
+    /**
+     * Number of Jira events merged into the one that caused the build.
+     */
+    public int getMergedEvents() {
+        return event.getMergedEvents();
+    }
+
     @Override
     public String getShortDescription() {
-        return "[" + event.getIssue().getType() + "/" + event.getIssue().getKey() + "]" + event.getType() + " in Jira";
+        final String merged = event.getMergedEvents() > 1 ? " (" + event.getMergedEvents() + " events merged)" : "";
+        return "[" + event.getIssue().getType() + "/" + event.getIssue().getKey() + "]" + event.getType() + " in Jira" + merged;
     }
 
     @Override
@@ -53,7 +66,10 @@ public class JiraEventCause extends Cause {
                 new StringParameterValue("jira.issue.key", event.getIssue().getKey()),
                 new StringParameterValue("jira.issue.type", event.getIssue().getType()),
                 new StringParameterValue("jira.issue.status", event.getIssue().getStatus()),
-                new StringParameterValue("jira.project.key", event.getIssue().getProjectkey())
+                new StringParameterValue("jira.issue.previousStatus", Util.fixNull(event.getIssue().getPreviousStatus())),
+                new StringParameterValue("jira.issue.summary", Util.fixNull(event.getIssue().getSummary())),
+                new StringParameterValue("jira.project.key", event.getIssue().getProjectkey()),
+                new StringParameterValue("jira.event.merged", String.valueOf(event.getMergedEvents()))
         );
     }
 }
\ No newline at end of file
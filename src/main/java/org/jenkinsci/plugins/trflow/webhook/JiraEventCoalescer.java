@@ -0,0 +1,118 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import org.jenkinsci.plugins.trflow.util.NamedDaemonThreadFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.SEVERE;
+
+/**
+ * Coalesces bursts of events for the same issue.
+ * <p/>
+ * The first event of an issue opens a window; every event of that issue received before the window closes replaces
+ * the pending one. When the window closes only the latest state is delivered, together with the number of events
+ * it stands for (see {@link JiraEvent#getMergedEvents()}). A window of 0 delivers every event right away.
+ */
+class JiraEventCoalescer {
+    private static final Logger LOGGER = Logger.getLogger(JiraEventCoalescer.class.getName());
+
+    /**
+     * Receives the coalesced events.
+     */
+    interface Sink {
+        void deliver(JiraEvent event);
+
+        /**
+         * Called for an event replaced by a later event of the same issue. It will not be delivered.
+         */
+        void superseded(JiraEvent event);
+    }
+
+    private final Sink sink;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("jira-event-coalescer"));
+    private final Map<String, Pending> pending = new HashMap<String, Pending>();
+    private final AtomicLong merged = new AtomicLong();
+
+    JiraEventCoalescer(Sink sink) {
+        this.sink = sink;
+    }
+
+    void offer(JiraEvent event, long windowMillis) {
+        if (windowMillis <= 0) {
+            sink.deliver(event);
+            return;
+        }
+
+        final String key = event.getIssue().getKey() != null ? event.getIssue().getKey() : "";
+        final JiraEvent replaced;
+        synchronized (pending) {
+            final Pending p = pending.get(key);
+            if (p != null) {
+                replaced = p.latest;
+                p.latest = event;
+                p.count += event.getMergedEvents();
+            } else {
+                replaced = null;
+                pending.put(key, new Pending(event));
+            }
+        }
+        if (replaced != null) {
+            // outside of the lock: the sink releases admission, audits and journals, which may block
+            merged.incrementAndGet();
+            sink.superseded(replaced);
+            return;
+        }
+        timer.schedule(new Runnable() {
+            public void run() {
+                flush(key);
+            }
+        }, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush(String key) {
+        final Pending p;
+        synchronized (pending) {
+            p = pending.remove(key);
+        }
+        if (p == null)
+            return;
+        try {
+            sink.deliver(p.first == p.latest ? p.latest : new JiraEvent(p.first, p.latest, p.count));
+        } catch (RuntimeException e) {
+            LOGGER.log(SEVERE, "Unable to deliver coalesced Jira event for issue " + key, e);
+        }
+    }
+
+    /**
+     * Number of events currently waiting for their window to close.
+     */
+    int getPending() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Number of events that were merged into a later event of the same issue.
+     */
+    long getMerged() {
+        return merged.get();
+    }
+
+    private static final class Pending {
+        final JiraEvent first;
+        JiraEvent latest;
+        int count;
+
+        Pending(JiraEvent event) {
+            this.first = this.latest = event;
+            this.count = event.getMergedEvents();
+        }
+    }
+}
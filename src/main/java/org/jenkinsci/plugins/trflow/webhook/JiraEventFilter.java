@@ -0,0 +1,53 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cheap pre-filter consulted by {@link JiraEventReader} before a {@link JiraEvent} is built.
+ * <p/>
+ * We only care about events of a known {@link JiraEventType} whose changelog has a {@code status} item that
+ * actually changed. Anything else is dropped as soon as the reader has seen enough of the payload to tell.
+ * Payloads without a {@code webhookEvent}, or without the issue and project keys, are not dropped here: the reader
+ * rejects them as malformed.
+ */
+public class JiraEventFilter {
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong droppedUnknownType = new AtomicLong();
+    private final AtomicLong droppedNoStatusChange = new AtomicLong();
+
+    public boolean acceptsType(String webhookEvent) {
+        return JiraEventType.valueOfFromId(webhookEvent) != null;
+    }
+
+    public boolean isStatusChange(String field, String from, String to) {
+        return "status".equals(field) && !(from == null ? to == null : from.equals(to));
+    }
+
+    void onAccepted() {
+        accepted.incrementAndGet();
+    }
+
+    void onUnknownType() {
+        droppedUnknownType.incrementAndGet();
+    }
+
+    void onNoStatusChange() {
+        droppedNoStatusChange.incrementAndGet();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getDropped() {
+        return getDroppedUnknownType() + getDroppedNoStatusChange();
+    }
+
+    public long getDroppedUnknownType() {
+        return droppedUnknownType.get();
+    }
+
+    public long getDroppedNoStatusChange() {
+        return droppedNoStatusChange.get();
+    }
+}
@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import org.jenkinsci.plugins.trflow.util.NamedDaemonThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded hand-off between the webhook request thread and the worker threads that actually process Jira events.
+ * <p/>
+ * When the queue is full new events are rejected instead of blocking the Stapler request thread.
+ */
+class JiraEventIngestion {
+    private final int workers;
+    private final int capacity;
+    private final ThreadPoolExecutor executor;
+
+    JiraEventIngestion(int workers, int capacity) {
+        this.workers = workers;
+        this.capacity = capacity;
+        this.executor = new ThreadPoolExecutor(workers, workers, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity),
+                new NamedDaemonThreadFactory("jira-webhook-worker"),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Enqueues the task.
+     *
+     * @return false if the queue is full, or the pool shut down, and the task was not accepted.
+     */
+    boolean offer(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    int getWorkers() {
+        return workers;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /**
+     * Stops accepting new events. Events already queued are still processed.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,505 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.SEVERE;
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Append-only, segmented journal of the accepted {@link JiraEvent}s.
+ * <p/>
+ * An event is appended (and forced to disk) before the webhook acknowledges it, and marked done once every matching
+ * {@link JiraTrigger} has scheduled its build. Events still pending when Jenkins stops are returned by
+ * {@link #recover()} on the next start.
+ * <p/>
+ * A single writer thread owns the file channel. It drains every record queued since its last write and forces them
+ * to disk with one {@code fsync}, so concurrent webhook requests share the cost of a commit. Segments roll over at
+ * {@link #SEGMENT_SIZE} bytes and are deleted as soon as none of their events is pending.
+ */
+class JiraEventJournal {
+    private static final Logger LOGGER = Logger.getLogger(JiraEventJournal.class.getName());
+
+    static final long SEGMENT_SIZE = Long.getLong(JiraEventJournal.class.getName() + ".segmentSize", 4 * 1024 * 1024);
+    private static final long COMMIT_TIMEOUT_SECONDS = 10;
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    private static final int MAX_BATCH = 512;
+    private static final int HEADER = 1 + 8;
+    /**
+     * Largest record body, so a corrupt length prefix cannot make {@link #read} allocate gigabytes.
+     */
+    private static final int MAX_RECORD = 1024 * 1024;
+
+    private static final byte ACCEPTED = 1;
+    private static final byte DONE = 2;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+
+    private final File dir;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<Record>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+    private List<JiraEvent> recovered = Collections.emptyList();
+
+    // only touched by the writer thread once it is started. Null while no segment could be opened.
+    private FileChannel channel;
+    private long segment;
+    private final Map<Long, Long> segmentOf = new HashMap<Long, Long>();
+    private final TreeMap<Long, Integer> liveBySegment = new TreeMap<Long, Integer>();
+
+    JiraEventJournal(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Reads the existing segments, rewrites the still pending events into a fresh segment, deletes the old ones and
+     * starts the writer thread.
+     */
+    synchronized void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create " + dir);
+
+        final List<Long> segments = listSegments();
+        final Map<Long, JiraEvent> events = new LinkedHashMap<Long, JiraEvent>();
+        long maxSequence = 0;
+        for (long s : segments) {
+            maxSequence = Math.max(maxSequence, read(segmentFile(s), events));
+        }
+        sequence.set(maxSequence);
+
+        segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        channel = openSegment(segment);
+        if (!events.isEmpty()) {
+            final List<Record> rewrite = new ArrayList<Record>(events.size());
+            for (JiraEvent e : events.values())
+                rewrite.add(new Record(ACCEPTED, e.getSequence(), encode(e), null));
+            write(rewrite);
+        }
+        for (long s : segments)
+            delete(segmentFile(s));
+
+        recovered = new ArrayList<JiraEvent>(events.values());
+        if (!recovered.isEmpty())
+            LOGGER.log(WARNING, "{0} Jira events were received but not scheduled before the last shutdown. Replaying them.", recovered.size());
+
+        final Thread writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "jira-event-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Returns, only once, the events that were pending when the journal was opened.
+     */
+    synchronized List<JiraEvent> recover() {
+        final List<JiraEvent> r = recovered;
+        recovered = Collections.emptyList();
+        return r;
+    }
+
+    /**
+     * Durably appends the event.
+     *
+     * @return the event tagged with its sequence number, to be passed to {@link #markDone(JiraEvent)} later.
+     * @throws IOException if the event could not be written. It is then never replayed, even if it reaches the disk
+     *                     after the caller gave up waiting.
+     */
+    JiraEvent append(JiraEvent event) throws IOException {
+        final JiraEvent journaled = event.withSequence(sequence.incrementAndGet());
+        final byte[] payload = encode(journaled);
+        if (HEADER + payload.length > MAX_RECORD)
+            throw new IOException("Jira event of " + payload.length + " bytes is too large for the journal");
+        final Record r = new Record(ACCEPTED, journaled.getSequence(), payload, new CountDownLatch(1));
+        queue.add(r);
+        try {
+            if (!r.committed.await(COMMIT_TIMEOUT_SECONDS, TimeUnit.SECONDS) && r.cancel())
+                throw new IOException("Timed out writing the Jira event journal");
+        } catch (InterruptedException e) {
+            if (r.cancel())
+                throw (IOException) new InterruptedIOException().initCause(e);
+            Thread.currentThread().interrupt(); // committed meanwhile
+        }
+        if (r.error != null)
+            throw r.error;
+        return journaled;
+    }
+
+    /**
+     * Records that the event does not need to be replayed anymore. Does not wait for the disk.
+     */
+    void markDone(JiraEvent event) {
+        if (event.getSequence() > 0)
+            queue.add(new Record(DONE, event.getSequence(), null, null));
+    }
+
+    /**
+     * Number of events appended and not done yet.
+     */
+    int getPending() {
+        return pending.get();
+    }
+
+    long getCommits() {
+        return commits.get();
+    }
+
+    long getRecords() {
+        return records.get();
+    }
+
+    private void writeLoop() {
+        final List<Record> batch = new ArrayList<Record>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            for (Iterator<Record> it = batch.iterator(); it.hasNext(); ) {
+                if (!it.next().claim())
+                    it.remove(); // the appender gave up waiting before it was written
+            }
+            boolean failed = false;
+            try {
+                if (channel == null)
+                    channel = openSegment(segment);
+                write(batch);
+            } catch (IOException e) {
+                LOGGER.log(SEVERE, "Unable to write the Jira event journal", e);
+                failed = true;
+                for (Record r : batch) {
+                    if (r.kind == DONE) {
+                        queue.add(r); // retried with the next batch
+                    } else {
+                        r.fail(e);
+                        // part of the batch may be on disk: make sure the event is not replayed
+                        queue.add(new Record(DONE, r.sequence, null, null));
+                    }
+                }
+                if (channel != null)
+                    startNewSegment(); // the current one may end with a partial record
+            } finally {
+                batch.clear();
+            }
+            try {
+                if (failed)
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                else
+                    rollAndCompact();
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Unable to roll over the Jira event journal", e);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void write(List<Record> batch) throws IOException {
+        int size = 0;
+        for (Record r : batch)
+            size += r.size();
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (Record r : batch)
+            r.writeTo(buffer);
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        channel.force(false);
+
+        commits.incrementAndGet();
+        records.addAndGet(batch.size());
+        for (Record r : batch) {
+            account(r);
+            if (!r.commit()) // written after its appender gave up and answered an error
+                queue.add(new Record(DONE, r.sequence, null, null));
+        }
+    }
+
+    private void account(Record r) {
+        if (r.kind == ACCEPTED) {
+            segmentOf.put(r.sequence, segment);
+            final Integer live = liveBySegment.get(segment);
+            liveBySegment.put(segment, live == null ? 1 : live + 1);
+            pending.incrementAndGet();
+        } else {
+            final Long s = segmentOf.remove(r.sequence);
+            if (s != null) {
+                final Integer live = liveBySegment.get(s);
+                if (live != null)
+                    liveBySegment.put(s, live - 1);
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private void rollAndCompact() throws IOException {
+        if (channel.size() >= SEGMENT_SIZE) {
+            channel.close();
+            channel = null;
+            if (!liveBySegment.containsKey(segment))
+                liveBySegment.put(segment, 0);
+            channel = openSegment(++segment);
+        }
+        // closed segments without pending events are not needed anymore
+        for (Iterator<Map.Entry<Long, Integer>> it = liveBySegment.headMap(segment).entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<Long, Integer> e = it.next();
+            if (e.getValue() <= 0) {
+                delete(segmentFile(e.getKey()));
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes the current segment and opens the next one. If that fails, opening it is retried before the next write.
+     */
+    private void startNewSegment() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Unable to close the Jira event journal segment", e);
+        }
+        channel = null;
+        if (!liveBySegment.containsKey(segment))
+            liveBySegment.put(segment, 0);
+        try {
+            channel = openSegment(++segment);
+        } catch (IOException e) {
+            LOGGER.log(SEVERE, "Unable to open a new Jira event journal segment", e);
+        }
+    }
+
+    /**
+     * Reads a segment into {@code events}, dropping the events marked done.
+     * A truncated or corrupt record (crash while writing) ends the segment: it and the rest of the file are ignored.
+     *
+     * @return the highest sequence number found.
+     */
+    private long read(File file, Map<Long, JiraEvent> events) throws IOException {
+        long max = 0;
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < HEADER || length > MAX_RECORD) {
+                    LOGGER.log(WARNING, "Ignoring the rest of {0} from a record of invalid length {1}", new Object[]{file, length});
+                    break;
+                }
+                final byte[] record = new byte[length];
+                final int crc;
+                try {
+                    crc = in.readInt();
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    LOGGER.log(WARNING, "Ignoring truncated record at the end of {0}", file);
+                    break;
+                }
+                if (crc != crc(record, 0, length)) {
+                    LOGGER.log(WARNING, "Ignoring the rest of {0} from a corrupt record", file);
+                    break;
+                }
+                final DataInputStream r = new DataInputStream(new ByteArrayInputStream(record));
+                final byte kind = r.readByte();
+                final long seq = r.readLong();
+                max = Math.max(max, seq);
+                if (kind == ACCEPTED)
+                    events.put(seq, decode(r, seq));
+                else
+                    events.remove(seq);
+            }
+        } finally {
+            in.close();
+        }
+        return max;
+    }
+
+    private static byte[] encode(JiraEvent e) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writeNullable(out, e.getType() != null ? e.getType().id : null);
+        writeNullable(out, e.getIssue().getKey());
+        writeNullable(out, e.getIssue().getType());
+        writeNullable(out, e.getIssue().getStatus());
+        writeNullable(out, e.getIssue().getProjectkey());
+        writeNullable(out, e.getIssue().getSummary());
+        writeNullable(out, e.getIssue().getPreviousStatus());
+        out.writeBoolean(e.hasStatusChanged());
+        out.writeInt(e.getMergedEvents());
+        writeNullable(out, e.getSite());
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static JiraEvent decode(DataInputStream in, long seq) throws IOException {
+        final JiraEventType type = JiraEventType.valueOfFromId(readNullable(in));
+        final JiraIssue issue = new JiraIssue(readNullable(in), readNullable(in), readNullable(in), readNullable(in), readNullable(in), readNullable(in));
+        final boolean changed = in.readBoolean();
+        final int mergedEvents = in.readInt();
+        return new JiraEvent(type, issue, changed, mergedEvents, readNullable(in), seq);
+    }
+
+    private static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private List<Long> listSegments() {
+        final String[] names = dir.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        final List<Long> segments = new ArrayList<Long>();
+        if (names != null) {
+            for (String name : names) {
+                try {
+                    segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    LOGGER.log(WARNING, "Ignoring unexpected file {0} in {1}", new Object[]{name, dir});
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private File segmentFile(long s) {
+        return new File(dir, String.format("%s%012d%s", PREFIX, s, SUFFIX));
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private FileChannel openSegment(long s) throws IOException {
+        return FileChannel.open(segmentFile(s).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void delete(File f) {
+        if (f.exists() && !f.delete())
+            LOGGER.log(WARNING, "Unable to delete {0}", f);
+    }
+
+    /**
+     * A journal record: {@code <length:int><crc:int><kind:byte><sequence:long><event>}, the length and CRC32 being
+     * those of the bytes after them.
+     * <p/>
+     * A record with an appender waiting for it goes from {@code QUEUED} to {@code CLAIMED} when the writer takes it,
+     * then to {@code COMMITTED} or {@code FAILED}. The appender can {@link #cancel()} it until then.
+     */
+    private static final class Record {
+        private static final int QUEUED = 0, CLAIMED = 1, COMMITTED = 2, FAILED = 3, CANCELLED = 4;
+
+        final byte kind;
+        final long sequence;
+        final byte[] payload;
+        final CountDownLatch committed;
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        volatile IOException error;
+
+        Record(byte kind, long sequence, byte[] payload, CountDownLatch committed) {
+            this.kind = kind;
+            this.sequence = sequence;
+            this.payload = payload;
+            this.committed = committed;
+        }
+
+        int size() {
+            return 4 + 4 + HEADER + (payload != null ? payload.length : 0);
+        }
+
+        /**
+         * @param b a heap buffer, the CRC being computed on its array.
+         */
+        void writeTo(ByteBuffer b) {
+            final int length = size() - 8;
+            b.putInt(length);
+            final int crcAt = b.position();
+            b.putInt(0);
+            b.put(kind);
+            b.putLong(sequence);
+            if (payload != null)
+                b.put(payload);
+            b.putInt(crcAt, crc(b.array(), b.arrayOffset() + crcAt + 4, length));
+        }
+
+        /**
+         * @return false if the appender cancelled the record, which must not be written then.
+         */
+        boolean claim() {
+            return committed == null || state.compareAndSet(QUEUED, CLAIMED);
+        }
+
+        /**
+         * @return false if the appender cancelled the record while it was being written.
+         */
+        boolean commit() {
+            if (committed == null)
+                return true;
+            final boolean r = state.compareAndSet(CLAIMED, COMMITTED);
+            committed.countDown();
+            return r;
+        }
+
+        void fail(IOException e) {
+            error = e;
+            state.compareAndSet(CLAIMED, FAILED);
+            committed.countDown();
+        }
+
+        /**
+         * Called by the appender when it stops waiting.
+         *
+         * @return false if the record was committed or failed meanwhile.
+         */
+        boolean cancel() {
+            return state.compareAndSet(QUEUED, CANCELLED) || state.compareAndSet(CLAIMED, CANCELLED);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming reader for Jira webhook payloads.
+ * <p/>
+ * Only the handful of values a {@link JiraEvent} needs are materialized: the event type, the issue URL, key, type,
+ * status, project key and summary, and the {@code status} items of the changelog. Everything else (descriptions,
+ * rendered fields, comments, users...) is skipped character by character without building a JSON tree.
+ * <p/>
+ * Payloads rejected by the {@link JiraEventFilter} stop being materialized as soon as the filter has decided, and
+ * no {@link JiraEvent} is built for them. When {@code truncateDropped} is set, reading stops right there.
+ * <p/>
+ * Several payloads can be read from the same input, either one after the other (newline-delimited JSON) or as the
+ * elements of a top-level array.
+ */
+class JiraEventReader {
+    private static final String ROOT = "";
+    private static final String WEBHOOK_EVENT = "webhookEvent";
+    private static final String ISSUE = "issue";
+    private static final String ISSUE_SELF = "issue/self";
+    private static final String ISSUE_KEY = "issue/key";
+    private static final String FIELDS = "issue/fields";
+    private static final String SUMMARY = "issue/fields/summary";
+    private static final String ISSUE_TYPE = "issue/fields/issuetype";
+    private static final String ISSUE_TYPE_NAME = "issue/fields/issuetype/name";
+    private static final String STATUS = "issue/fields/status";
+    private static final String STATUS_NAME = "issue/fields/status/name";
+    private static final String PROJECT = "issue/fields/project";
+    private static final String PROJECT_KEY = "issue/fields/project/key";
+    private static final String CHANGELOG = "changelog";
+    private static final String CHANGELOG_ITEMS = "changelog/items";
+
+    private final Reader in;
+    private final JiraEventFilter filter;
+    private final boolean truncateDropped;
+    private int peeked = -2;
+    private boolean framed;
+    private boolean inArray;
+    private boolean expectSeparator;
+
+    // values of the payload being read
+    private String webhookEvent;
+    private String self;
+    private String key;
+    private String type;
+    private String status;
+    private String projectKey;
+    private String summary;
+    private String previousStatus;
+    private boolean statusChanged;
+    private boolean dropped;
+
+    JiraEventReader(Reader in, JiraEventFilter filter, boolean truncateDropped) {
+        this.in = in;
+        this.filter = filter;
+        this.truncateDropped = truncateDropped;
+    }
+
+    /**
+     * Reads the request body exactly once, decoding it as UTF-8.
+     */
+    static JiraEventReader utf8(InputStream in, JiraEventFilter filter, boolean truncateDropped) {
+        return new JiraEventReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)), filter, truncateDropped);
+    }
+
+    /**
+     * True if there is another payload to read.
+     */
+    boolean hasNext() throws IOException {
+        int c = skipWhitespace();
+        if (!framed) {
+            framed = true;
+            if (c == '[') {
+                next();
+                inArray = true;
+                c = skipWhitespace();
+                if (c == ']') {
+                    next();
+                    inArray = false;
+                    return false;
+                }
+            }
+        } else if (inArray && expectSeparator) {
+            next();
+            expectSeparator = false;
+            if (c == ']') {
+                inArray = false;
+                return false;
+            }
+            if (c != ',')
+                throw new MalformedPayload("expected ',' or ']'");
+            c = skipWhitespace();
+        } else if (inArray && c == ']') {
+            next();
+            inArray = false;
+            return false;
+        }
+        return c != -1;
+    }
+
+    /**
+     * Reads the next payload.
+     *
+     * @return the event, or null if the payload was dropped by the filter.
+     * @throws MalformedPayload if the input is not a JSON object, has no {@code webhookEvent}, or would be accepted
+     *                          but lacks the issue or project key.
+     */
+    JiraEvent read() throws IOException {
+        webhookEvent = self = key = type = status = projectKey = summary = previousStatus = null;
+        statusChanged = dropped = false;
+        framed = true;
+        readObject(ROOT);
+        expectSeparator = inArray;
+
+        // a truncated payload may have its webhookEvent after the point the filter decided at
+        if (webhookEvent == null && !(dropped && truncateDropped))
+            throw new MalformedPayload("no webhookEvent");
+        if (!dropped && !statusChanged) { // no changelog at all
+            filter.onNoStatusChange();
+            dropped = true;
+        }
+        if (dropped)
+            return null;
+        if (key == null)
+            throw new MalformedPayload("no issue key");
+        if (projectKey == null)
+            throw new MalformedPayload("no project key");
+
+        filter.onAccepted();
+        return new JiraEvent(JiraEventType.valueOfFromId(webhookEvent), new JiraIssue(key, type, status, projectKey, summary, previousStatus), statusChanged,
+                JiraEvent.site(self));
+    }
+
+    /**
+     * Issue key of the last payload read, or null if it was dropped before its key was read.
+     */
+    String getLastKey() {
+        return key;
+    }
+
+    /**
+     * {@code webhookEvent} of the last payload read, or null if it was dropped before it was read.
+     */
+    String getLastWebhookEvent() {
+        return webhookEvent;
+    }
+
+    private void readObject(String path) throws IOException {
+        expect('{');
+        if (skipWhitespace() == '}') {
+            next();
+            return;
+        }
+        do {
+            final String name = readString();
+            expect(':');
+            readValue(path.isEmpty() ? name : path + '/' + name);
+            if (dropped && truncateDropped)
+                return;
+        } while (readSeparator('}'));
+    }
+
+    private void readValue(String path) throws IOException {
+        final int c = skipWhitespace();
+        if (dropped) {
+            skipValue();
+        } else if (c == '"') {
+            final String value = readString();
+            capture(path, value);
+        } else if (c == 'n') {
+            skipLiteral();
+        } else if (c == '{' && isSelected(path)) {
+            readObject(path);
+        } else if (c == '[' && CHANGELOG_ITEMS.equals(path)) {
+            readChangelogItems();
+            if (!statusChanged) {
+                filter.onNoStatusChange();
+                dropped = true;
+            }
+        } else {
+            skipValue();
+        }
+    }
+
+    private void capture(String path, String value) {
+        if (WEBHOOK_EVENT.equals(path)) {
+            webhookEvent = value;
+            if (!filter.acceptsType(value)) {
+                filter.onUnknownType();
+                dropped = true;
+            }
+        } else if (ISSUE_SELF.equals(path))
+            self = value;
+        else if (ISSUE_KEY.equals(path))
+            key = value;
+        else if (ISSUE_TYPE_NAME.equals(path))
+            type = value;
+        else if (STATUS_NAME.equals(path))
+            status = value;
+        else if (PROJECT_KEY.equals(path))
+            projectKey = value;
+        else if (SUMMARY.equals(path))
+            summary = value;
+    }
+
+    private static boolean isSelected(String path) {
+        return ISSUE.equals(path) || FIELDS.equals(path) || ISSUE_TYPE.equals(path) || STATUS.equals(path)
+                || PROJECT.equals(path) || CHANGELOG.equals(path);
+    }
+
+    private void readChangelogItems() throws IOException {
+        expect('[');
+        if (skipWhitespace() == ']') {
+            next();
+            return;
+        }
+        do {
+            readChangelogItem();
+        } while (readSeparator(']'));
+    }
+
+    private void readChangelogItem() throws IOException {
+        if (skipWhitespace() != '{') {
+            skipValue();
+            return;
+        }
+        String field = null, from = null, to = null, fromString = null;
+        expect('{');
+        if (skipWhitespace() == '}') {
+            next();
+            return;
+        }
+        do {
+            final String name = readString();
+            expect(':');
+            final int c = skipWhitespace();
+            if (c == '"' && ("field".equals(name) || "from".equals(name) || "to".equals(name) || "fromString".equals(name))) {
+                final String value = readString();
+                if ("field".equals(name))
+                    field = value;
+                else if ("from".equals(name))
+                    from = value;
+                else if ("to".equals(name))
+                    to = value;
+                else
+                    fromString = value;
+            } else {
+                skipValue();
+            }
+        } while (readSeparator('}'));
+
+        if (filter.isStatusChange(field, from, to)) {
+            statusChanged = true;
+            previousStatus = fromString;
+        }
+    }
+
+    /**
+     * Skips any JSON value without materializing it.
+     */
+    private void skipValue() throws IOException {
+        final int c = skipWhitespace();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                final int n = skipWhitespace();
+                if (n == '"') {
+                    skipString();
+                    continue;
+                }
+                next();
+                if (n == '{' || n == '[')
+                    depth++;
+                else if (n == '}' || n == ']')
+                    depth--;
+                else if (n == -1)
+                    throw new MalformedPayload("unexpected end of payload");
+            } while (depth > 0);
+        } else {
+            skipLiteral();
+        }
+    }
+
+    private void skipLiteral() throws IOException {
+        int c = skipWhitespace();
+        if (c == -1 || c == ',' || c == '}' || c == ']')
+            throw new MalformedPayload("value expected");
+        while (c != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+            next();
+            c = peek();
+        }
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        final StringBuilder b = new StringBuilder();
+        for (int c = next(); c != '"'; c = next()) {
+            if (c == -1)
+                throw new MalformedPayload("unterminated string");
+            if (c == '\\')
+                b.append(readEscape());
+            else
+                b.append((char) c);
+        }
+        return b.toString();
+    }
+
+    private void skipString() throws IOException {
+        expect('"');
+        for (int c = next(); c != '"'; c = next()) {
+            if (c == -1)
+                throw new MalformedPayload("unterminated string");
+            if (c == '\\')
+                readEscape();
+        }
+    }
+
+    private char readEscape() throws IOException {
+        final int c = next();
+        switch (c) {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i++) {
+                    final int digit = Character.digit(next(), 16);
+                    if (digit < 0)
+                        throw new MalformedPayload("invalid unicode escape");
+                    code = (code << 4) | digit;
+                }
+                return (char) code;
+            case -1:
+                throw new MalformedPayload("unterminated string");
+            default:
+                return (char) c; // \" \\ \/
+        }
+    }
+
+    /**
+     * Consumes either a ',' (returns true) or the given closing character (returns false).
+     */
+    private boolean readSeparator(char close) throws IOException {
+        final int c = skipWhitespace();
+        next();
+        if (c == ',')
+            return true;
+        if (c == close)
+            return false;
+        throw new MalformedPayload("expected ',' or '" + close + "'");
+    }
+
+    private void expect(char expected) throws IOException {
+        if (skipWhitespace() != expected)
+            throw new MalformedPayload("expected '" + expected + "'");
+        next();
+    }
+
+    private int skipWhitespace() throws IOException {
+        int c = peek();
+        while (c != -1 && Character.isWhitespace(c)) {
+            next();
+            c = peek();
+        }
+        return c;
+    }
+
+    private int peek() throws IOException {
+        if (peeked == -2)
+            peeked = in.read();
+        return peeked;
+    }
+
+    private int next() throws IOException {
+        final int c = peek();
+        peeked = -2;
+        return c;
+    }
+
+    /**
+     * The payload is not valid JSON, or not a JSON object.
+     */
+    public static final class MalformedPayload extends IOException {
+        public MalformedPayload(String message) {
+            super(message);
+        }
+    }
+}
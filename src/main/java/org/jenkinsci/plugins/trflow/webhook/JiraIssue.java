@@ -2,27 +2,75 @@ package org.jenkinsci.plugins.trflow.webhook;
 
 import net.sf.json.JSONObject;
 
+/**
+ * Immutable snapshot of the few issue fields we use.
+ * <p/>
+ * The webhook payload is dropped once these values are extracted: issues end up in the {@link JiraEventCause} of
+ * queued and finished builds, so anything kept here is kept in memory and written to every <tt>build.xml</tt>.
+ * Low-cardinality values (type, status, project) are interned so queued causes share them.
+ */
 public class JiraIssue {
-    private final JSONObject o;
+    private final String key;
+    private final String type;
+    private final String status;
+    private final String projectKey;
+    private final String summary;
+    private final String previousStatus;
 
     protected JiraIssue(JSONObject o) {
-        this.o = o;
+        this(o.getString("key"),
+                o.getJSONObject("fields").getJSONObject("issuetype").getString("name"),
+                o.getJSONObject("fields").getJSONObject("status").getString("name"),
+                o.getJSONObject("fields").getJSONObject("project").getString("key"),
+                o.getJSONObject("fields").optString("summary", null),
+                null);
+    }
+
+    protected JiraIssue(String key, String type, String status, String projectKey, String summary, String previousStatus) {
+        this.key = key;
+        this.type = intern(type);
+        this.status = intern(status);
+        this.projectKey = intern(projectKey);
+        this.summary = summary;
+        this.previousStatus = intern(previousStatus);
+    }
+
+    /**
+     * Returns this issue with a different previous status.
+     */
+    protected JiraIssue withPreviousStatus(String previousStatus) {
+        return new JiraIssue(key, type, status, projectKey, summary, previousStatus);
     }
 
     public String getStatus() {
-        return o.getJSONObject("fields").getJSONObject("status").getString("name");
+        return status;
+    }
+
+    /**
+     * Status the issue had before the event, or null if unknown.
+     */
+    public String getPreviousStatus() {
+        return previousStatus;
     }
 
     public String getKey() {
-        return o.getString("key");
+        return key;
     }
 
     public String getType() {
-        return o.getJSONObject("fields").getJSONObject("issuetype").getString("name");
+        return type;
     }
 
     public String getProjectkey() {
-        return o.getJSONObject("fields").getJSONObject("project").getString("key");
+        return projectKey;
+    }
+
+    public String getSummary() {
+        return summary;
+    }
+
+    private static String intern(String s) {
+        return s != null ? s.intern() : null;
     }
 
     @Override
@@ -44,6 +92,6 @@ public class JiraIssue {
 
     @Override
     public String toString() {
-        return o.toString();
+        return type + "/" + key + " [" + projectKey + "] " + (previousStatus != null ? previousStatus + " -> " : "") + status;
     }
 }
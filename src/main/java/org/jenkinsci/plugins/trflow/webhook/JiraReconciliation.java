@@ -0,0 +1,335 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.PeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Fallback for lost webhook calls: periodically runs the configured JQL against every Jira of
+ * {@link JiraTrigger.DescriptorImpl#getCredentials()} and sends the issues whose status changed since Jenkins last
+ * saw them through {@link JiraWebHook#processPayload(JiraEvent)}.
+ * <p/>
+ * Only issues updated since the previous poll are fetched: the query is narrowed with {@code updated >= watermark},
+ * the high-water mark of the {@code updated} values seen so far, and always sorted by {@code updated}. The watermark
+ * only moves over pages read to the end, so a poll cut short by {@link #MAX_PAGES} or an error resumes where it
+ * stopped. JQL dates have a one minute precision and are read in the timezone of the Jira user, so the watermark is
+ * written in that timezone, one minute early; issues seen twice are told apart by their last seen status.
+ * <p/>
+ * The first poll of a Jira only records the status of every issue. An issue seen for the first time afterwards is
+ * recorded too, as there is nothing to compare its status with. Issues are recorded per Jira, as two Jiras may
+ * have issues with the same key. Webhook events update the same record, found from the issue URL in the payload, so
+ * an event both delivered and polled triggers builds once.
+ */
+@Extension
+public class JiraReconciliation extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(JiraReconciliation.class.getName());
+    private static final long OVERLAP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long RETENTION_MILLIS = TimeUnit.DAYS.toMillis(30);
+    private static final int PAGE_SIZE = 100;
+    private static final int MAX_PAGES = 50;
+    private static final Pattern ORDER_BY = Pattern.compile("(?is)(^|\\s+)order\\s+by\\s+.*$");
+
+    private State state;
+    private long lastPoll;
+
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong reconciled = new AtomicLong();
+
+    public JiraReconciliation() {
+        super("Jira reconciliation");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return PeriodicWork.MIN; // the configured interval is checked on every run
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        final JiraTrigger.DescriptorImpl descriptor = JiraTrigger.DescriptorImpl.get();
+        final String jql = descriptor.getReconciliationJql();
+        if (jql == null || jql.trim().isEmpty())
+            return;
+        final long now = System.currentTimeMillis();
+        if (now - lastPoll < TimeUnit.MINUTES.toMillis(descriptor.getReconciliationIntervalMinutes()))
+            return;
+        lastPoll = now;
+        polls.incrementAndGet();
+
+        final State s = getState();
+        for (Credential credential : descriptor.getCredentials()) {
+            if (credential.apiUrl == null || credential.apiUrl.trim().isEmpty())
+                continue;
+            try {
+                final int n = reconcile(new JiraSearchClient(credential.apiUrl, credential.username, credential.oauthAccessToken),
+                        credential.apiUrl, jql, s);
+                listener.getLogger().println("Reconciled " + n + " issues of " + credential.apiUrl);
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Unable to reconcile Jira issues of " + credential.apiUrl, e);
+                e.printStackTrace(listener.error("Unable to reconcile Jira issues of " + credential.apiUrl));
+            }
+        }
+        s.prune();
+        save(s);
+    }
+
+    /**
+     * Fetches the issues updated since the watermark of the given Jira and processes the ones whose status changed.
+     *
+     * @return the number of issues sent to {@link JiraWebHook#processPayload(JiraEvent)}.
+     */
+    int reconcile(JiraSearchClient client, String apiUrl, String jql, State s) throws IOException {
+        final Watermark watermark = s.watermarks.get(apiUrl);
+        final boolean initial = watermark == null;
+        final String query = query(jql, watermark != null ? watermark.toJql(OVERLAP_MILLIS, userTimeZone(client, apiUrl)) : null);
+
+        Watermark next = watermark;
+        int changed = 0;
+        int startAt = 0;
+        for (int pages = 0; pages < MAX_PAGES; pages++) {
+            requests.incrementAndGet();
+            final JiraSearchClient.Page page = client.search(query, startAt, PAGE_SIZE);
+            for (int i = 0; i < page.issues.size(); i++) {
+                final Object o = page.issues.get(i);
+                final JiraIssue issue;
+                final Watermark updated;
+                try {
+                    if (!(o instanceof JSONObject))
+                        throw new JSONException("not an issue");
+                    issue = new JiraIssue((JSONObject) o);
+                    updated = Watermark.parse(((JSONObject) o).getJSONObject("fields").optString("updated", null));
+                } catch (JSONException e) {
+                    LOGGER.log(WARNING, "Skipping unexpected issue from " + apiUrl + ": " + o, e);
+                    continue;
+                }
+                if (updated != null && (next == null || updated.millis > next.millis))
+                    next = updated;
+
+                final Seen previous = s.issues.put(State.key(apiUrl, issue.getKey()), new Seen(issue.getStatus(), updated != null ? updated.millis : System.currentTimeMillis()));
+                if (initial || previous == null || previous.status == null || previous.status.equals(issue.getStatus()))
+                    continue;
+                changed++;
+                reconciled.incrementAndGet();
+                process(new JiraEvent(JiraEventType.IssueUpdated, issue.withPreviousStatus(previous.status), true, JiraEvent.site(apiUrl)));
+            }
+            // the page was read to the end: the next poll does not need anything older than its last issue
+            if (next != null)
+                s.watermarks.put(apiUrl, next);
+            if (page.isLast())
+                break;
+            startAt = page.startAt + page.issues.size();
+        }
+        return changed;
+    }
+
+    /**
+     * The configured JQL, narrowed to the issues updated since the given JQL date if any, and sorted by
+     * {@code updated} so pages are read in watermark order.
+     */
+    static String query(String jql, String since) {
+        final String base = ORDER_BY.matcher(jql).replaceFirst("").trim();
+        final StringBuilder b = new StringBuilder();
+        if (!base.isEmpty())
+            b.append('(').append(base).append(')');
+        if (since != null)
+            b.append(b.length() > 0 ? " AND " : "").append("updated >= \"").append(since).append('"');
+        return b.append(b.length() > 0 ? " " : "").append("ORDER BY updated ASC").toString();
+    }
+
+    private static TimeZone userTimeZone(JiraSearchClient client, String apiUrl) {
+        try {
+            return client.getUserTimeZone();
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Unable to read the timezone of the Jira user of " + apiUrl + ". Using the offset of the issue dates.", e);
+            return null;
+        }
+    }
+
+    /**
+     * Hands a status change found by polling to the webhook.
+     */
+    void process(JiraEvent event) {
+        JiraWebHook.get().processPayload(event);
+    }
+
+    /**
+     * Records the status Jenkins has just seen for an issue, whichever way it learned about it.
+     * Events from an unknown Jira are only recorded when a single Jira is configured.
+     */
+    void observe(JiraEvent event) {
+        String site = event.getSite();
+        if (site == null) {
+            final List<Credential> credentials = JiraTrigger.DescriptorImpl.get().getCredentials();
+            if (credentials.size() != 1)
+                return;
+            site = JiraEvent.site(credentials.get(0).apiUrl);
+            if (site == null)
+                return;
+        }
+        final JiraIssue issue = event.getIssue();
+        getState().issues.put(State.key(site, issue.getKey()), new Seen(issue.getStatus(), System.currentTimeMillis()));
+    }
+
+    public long getPolls() {
+        return polls.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Issues whose status change was found by polling.
+     */
+    public long getReconciled() {
+        return reconciled.get();
+    }
+
+    private synchronized State getState() {
+        if (state == null) {
+            final XmlFile file = getStateFile();
+            State s = null;
+            if (file.exists()) {
+                try {
+                    s = (State) file.read();
+                } catch (IOException e) {
+                    LOGGER.log(WARNING, "Unable to read " + file + ". Starting over.", e);
+                }
+            }
+            state = s != null ? s.init() : new State();
+        }
+        return state;
+    }
+
+    private void save(State s) {
+        final XmlFile file = getStateFile();
+        try {
+            file.write(s);
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Unable to write " + file, e);
+        }
+    }
+
+    private static XmlFile getStateFile() {
+        return new XmlFile(Jenkins.XSTREAM, new File(Jenkins.getInstance().getRootDir(), "jira-reconciliation.xml"));
+    }
+
+    public static JiraReconciliation get() {
+        return PeriodicWork.all().get(JiraReconciliation.class);
+    }
+
+    /**
+     * Persisted watermarks, per Jira API URL, and last seen status, per issue URL (see {@link #key(String, String)}).
+     */
+    static final class State {
+        private ConcurrentHashMap<String, Watermark> watermarks = new ConcurrentHashMap<String, Watermark>();
+        private ConcurrentHashMap<String, Seen> issues = new ConcurrentHashMap<String, Seen>();
+
+        Watermark getWatermark(String apiUrl) {
+            return watermarks.get(apiUrl);
+        }
+
+        Seen getSeen(String apiUrl, String issueKey) {
+            return issues.get(key(apiUrl, issueKey));
+        }
+
+        /**
+         * The browse URL of the issue, the same whether the Jira is known from its API URL or from an issue URL.
+         */
+        static String key(String apiUrl, String issueKey) {
+            return JiraEvent.site(apiUrl) + "/browse/" + issueKey;
+        }
+
+        private State init() {
+            if (watermarks == null)
+                watermarks = new ConcurrentHashMap<String, Watermark>();
+            if (issues == null)
+                issues = new ConcurrentHashMap<String, Seen>();
+            return this;
+        }
+
+        /**
+         * Forgets issues not updated for a long time. If one changes again, it is recorded as a new issue.
+         */
+        private void prune() {
+            final long oldest = System.currentTimeMillis() - RETENTION_MILLIS;
+            for (Iterator<Map.Entry<String, Seen>> it = issues.entrySet().iterator(); it.hasNext(); ) {
+                if (it.next().getValue().updated < oldest)
+                    it.remove();
+            }
+        }
+    }
+
+    static final class Seen {
+        final String status;
+        final long updated;
+
+        Seen(String status, long updated) {
+            this.status = status;
+            this.updated = updated;
+        }
+    }
+
+    /**
+     * A Jira {@code updated} value, with the UTC offset Jira rendered it in, used when the timezone of the Jira user
+     * is unknown.
+     */
+    static final class Watermark {
+        private static final String JIRA_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSSZ";
+        private static final String JQL_FORMAT = "yyyy/MM/dd HH:mm";
+
+        final long millis;
+        final String offset;
+
+        Watermark(long millis, String offset) {
+            this.millis = millis;
+            this.offset = offset;
+        }
+
+        static Watermark parse(String updated) {
+            if (updated == null || updated.length() < 5)
+                return null;
+            try {
+                final Date d = new SimpleDateFormat(JIRA_FORMAT, Locale.ENGLISH).parse(updated);
+                return new Watermark(d.getTime(), updated.substring(updated.length() - 5));
+            } catch (ParseException e) {
+                LOGGER.log(WARNING, "Unexpected Jira date: {0}", updated);
+                return null;
+            }
+        }
+
+        /**
+         * Formats this watermark, moved back by the given overlap, as a JQL date in the given timezone, or in the
+         * offset Jira used if null.
+         */
+        String toJql(long overlapMillis, TimeZone zone) {
+            final SimpleDateFormat f = new SimpleDateFormat(JQL_FORMAT, Locale.ENGLISH);
+            f.setTimeZone(zone != null ? zone : TimeZone.getTimeZone("GMT" + offset.substring(0, 3) + ":" + offset.substring(3)));
+            return f.format(new Date(millis - overlapMillis));
+        }
+    }
+}
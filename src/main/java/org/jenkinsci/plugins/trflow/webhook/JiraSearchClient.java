@@ -0,0 +1,116 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.codec.binary.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.TimeZone;
+
+/**
+ * Minimal client of the Jira REST search resource ({@code /rest/api/2/search}).
+ * <p/>
+ * Only asks for the fields a {@link JiraIssue} needs, so a page of results stays small. Also reads the timezone of
+ * the Jira user ({@code /rest/api/2/myself}), in which Jira evaluates the dates of a JQL query.
+ */
+class JiraSearchClient {
+    static final String FIELDS = "summary,status,issuetype,project,updated";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    private final String searchUrl;
+    private final String myselfUrl;
+    private final String authorization;
+
+    /**
+     * @param apiUrl either the base URL of Jira or the URL of its REST API, e.g. {@code https://jira.example.com/rest/api/2}.
+     */
+    JiraSearchClient(String apiUrl, String username, String token) {
+        String base = apiUrl.trim();
+        while (base.endsWith("/"))
+            base = base.substring(0, base.length() - 1);
+        if (!base.contains("/rest/api/"))
+            base += "/rest/api/2";
+        this.searchUrl = base + "/search";
+        this.myselfUrl = base + "/myself";
+        this.authorization = username == null || username.isEmpty() ? null
+                : "Basic " + new String(Base64.encodeBase64((username + ':' + (token != null ? token : "")).getBytes(UTF8)), UTF8);
+    }
+
+    /**
+     * Runs a JQL query and returns one page of its results.
+     */
+    Page search(String jql, int startAt, int maxResults) throws IOException {
+        final JSONObject o = get(new URL(searchUrl
+                + "?jql=" + URLEncoder.encode(jql, "UTF-8")
+                + "&startAt=" + startAt
+                + "&maxResults=" + maxResults
+                + "&fields=" + FIELDS));
+        return new Page(o.optInt("startAt", startAt), o.optInt("total", 0), o.optJSONArray("issues"));
+    }
+
+    /**
+     * Returns the timezone of the Jira user, or null if Jira does not tell.
+     */
+    TimeZone getUserTimeZone() throws IOException {
+        final String id = get(new URL(myselfUrl)).optString("timeZone", null);
+        return id == null || id.isEmpty() ? null : TimeZone.getTimeZone(id);
+    }
+
+    private JSONObject get(URL url) throws IOException {
+        final HttpURLConnection c = (HttpURLConnection) url.openConnection();
+        c.setConnectTimeout(TIMEOUT_MILLIS);
+        c.setReadTimeout(TIMEOUT_MILLIS);
+        c.setRequestProperty("Accept", "application/json");
+        if (authorization != null)
+            c.setRequestProperty("Authorization", authorization);
+        try {
+            final int status = c.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                final InputStream err = c.getErrorStream();
+                throw new IOException("Jira request " + url.getPath() + " failed with HTTP " + status + ": " + (err != null ? read(err) : c.getResponseMessage()));
+            }
+            return JSONObject.fromObject(read(c.getInputStream()));
+        } finally {
+            c.disconnect();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0)
+                out.write(buf, 0, n);
+            return new String(out.toByteArray(), UTF8);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * One page of search results.
+     */
+    static final class Page {
+        final int startAt;
+        final int total;
+        final JSONArray issues;
+
+        Page(int startAt, int total, JSONArray issues) {
+            this.startAt = startAt;
+            this.total = total;
+            this.issues = issues != null ? issues : new JSONArray();
+        }
+
+        boolean isLast() {
+            return issues.isEmpty() || startAt + issues.size() >= total;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+/**
+ * Status change recorded in the changelog of a Jira event.
+ */
+public final class JiraStatusTransition {
+    private final String from;
+    private final String to;
+
+    public JiraStatusTransition(String from, String to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Status before the change, or null if unknown.
+     */
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        JiraStatusTransition that = (JiraStatusTransition) o;
+
+        if (from != null ? !from.equals(that.from) : that.from != null) return false;
+        if (to != null ? !to.equals(that.to) : that.to != null) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = from != null ? from.hashCode() : 0;
+        result = 31 * result + (to != null ? to.hashCode() : 0);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return (from != null ? from : "*") + " -> " + to;
+    }
+}
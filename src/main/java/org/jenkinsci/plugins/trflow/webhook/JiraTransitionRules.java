@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Status transitions a {@link JiraTrigger} builds on, e.g.
+ * <pre>
+ * * -> In Review
+ * In Progress -> Done
+ * </pre>
+ * One rule per line (or separated by commas), {@code *} standing for any status. Statuses are compared ignoring case.
+ * <p/>
+ * Rules are compiled into a table from source status to target statuses, so matching an event is two map lookups
+ * whatever the number of rules. No rules at all matches every transition.
+ */
+public final class JiraTransitionRules {
+    static final String ANY = "*";
+    private static final String ARROW = "->";
+
+    public static final JiraTransitionRules ALL = new JiraTransitionRules(Collections.<String, Set<String>>emptyMap());
+
+    private final Map<String, Set<String>> targets;
+
+    private JiraTransitionRules(Map<String, Set<String>> targets) {
+        this.targets = targets;
+    }
+
+    /**
+     * Compiles the given rules.
+     *
+     * @throws IllegalArgumentException if a rule is not of the form {@code from -> to}.
+     */
+    public static JiraTransitionRules compile(String rules) {
+        if (rules == null || rules.trim().isEmpty())
+            return ALL;
+        final Map<String, Set<String>> targets = new HashMap<String, Set<String>>();
+        for (String rule : rules.split("[\\r\\n,]+")) {
+            if (rule.trim().isEmpty())
+                continue;
+            final int arrow = rule.indexOf(ARROW);
+            if (arrow < 0)
+                throw new IllegalArgumentException("Expected 'from -> to' but got '" + rule.trim() + "'");
+            final String from = normalize(rule.substring(0, arrow));
+            final String to = normalize(rule.substring(arrow + ARROW.length()));
+            if (from.isEmpty() || to.isEmpty())
+                throw new IllegalArgumentException("Expected 'from -> to' but got '" + rule.trim() + "'");
+            Set<String> set = targets.get(from);
+            if (set == null)
+                targets.put(from, set = new HashSet<String>());
+            set.add(to);
+        }
+        return targets.isEmpty() ? ALL : new JiraTransitionRules(targets);
+    }
+
+    public boolean matches(JiraStatusTransition transition) {
+        if (targets.isEmpty())
+            return true;
+        if (transition == null)
+            return false;
+        final String to = normalize(transition.getTo());
+        return transition.getFrom() != null && matches(targets.get(normalize(transition.getFrom())), to)
+                || matches(targets.get(ANY), to);
+    }
+
+    private static boolean matches(Set<String> to, String status) {
+        return to != null && (to.contains(status) || to.contains(ANY));
+    }
+
+    private static String normalize(String status) {
+        return status == null ? "" : status.trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    @Override
+    public String toString() {
+        return targets.isEmpty() ? "* -> *" : targets.toString();
+    }
+}
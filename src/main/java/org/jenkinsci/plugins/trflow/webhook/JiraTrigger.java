@@ -4,14 +4,16 @@ import hudson.Extension;
 import hudson.Util;
 import hudson.console.AnnotatedLargeText;
 import hudson.model.*;
-import hudson.model.Hudson.MasterComputer;
 import hudson.triggers.Trigger;
 import hudson.triggers.TriggerDescriptor;
-import hudson.util.SequentialExecutionQueue;
+import hudson.util.FormValidation;
 import net.sf.json.JSONObject;
 import org.apache.commons.jelly.XMLOutput;
+import org.jenkinsci.plugins.trflow.util.StripedExecutor;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 import java.io.File;
 import java.io.IOException;
@@ -22,6 +24,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.INFO;
@@ -34,20 +37,45 @@ import static java.util.logging.Level.WARNING;
  */
 public class JiraTrigger extends Trigger<AbstractProject<?, ?>> {
     private final String projectKey;
+    private final String transitions;
+    private transient volatile JiraTransitionRules rules;
 
-    @DataBoundConstructor
     public JiraTrigger(String projectKey) {
+        this(projectKey, null);
+    }
+
+    @DataBoundConstructor
+    public JiraTrigger(String projectKey, String transitions) {
         this.projectKey = projectKey;
+        this.transitions = Util.fixEmptyAndTrim(transitions);
+        this.rules = JiraTransitionRules.compile(this.transitions);
     }
 
     protected void scheduleBuild(final JiraEventCause cause) {
-        getDescriptor().queue.execute(new Runnable() {
+        scheduleBuild(cause, null);
+    }
+
+    /**
+     * Schedules the build on the lane of the issue, so events of the same issue are scheduled in arrival order.
+     *
+     * @param scheduled run once the build is in the Jenkins queue (or already was), may be null.
+     */
+    protected void scheduleBuild(final JiraEventCause cause, final Runnable scheduled) {
+        final long queuedAt = System.nanoTime();
+        getDescriptor().schedule(cause.getIssue().getKey(), new Runnable() {
             public void run() {
-                if (job.scheduleBuild(0, cause, cause.getParameters())) {
+                final long startedAt = System.nanoTime();
+                final boolean added = job.scheduleBuild(0, cause, cause.getParameters());
+                JiraWebHook.get().getMetrics().onScheduled(added, queuedAt, startedAt, cause.getEvent());
+                if (added) {
                     LOGGER.log(INFO, "Jira event received. Triggering job {0} #{1}", new Object[]{job.getName(), job.getNextBuildNumber()});
+                    log(cause.getEvent() + ": build scheduled");
                 } else {
                     LOGGER.log(INFO, "Jira event received. Job {0} is already in the queue.", job.getName());
+                    log(cause.getEvent() + ": build already in the queue");
                 }
+                if (scheduled != null)
+                    scheduled.run();
             }
         });
     }
@@ -56,6 +84,37 @@ public class JiraTrigger extends Trigger<AbstractProject<?, ?>> {
         return projectKey;
     }
 
+    /**
+     * Status transitions this trigger builds on, one {@code from -> to} rule per line. Null for any transition.
+     */
+    public String getTransitions() {
+        return transitions;
+    }
+
+    /**
+     * True if the status transition of the event matches the rules of this trigger.
+     */
+    public boolean accepts(JiraEvent event) {
+        return getRules().matches(event.getTransition());
+    }
+
+    private JiraTransitionRules getRules() {
+        JiraTransitionRules r = rules;
+        if (r == null) { // loaded from disk
+            try {
+                rules = r = JiraTransitionRules.compile(transitions);
+            } catch (IllegalArgumentException e) {
+                LOGGER.log(WARNING, "Invalid transition rules of " + (job != null ? job.getFullName() : projectKey) + ". Building on any transition.", e);
+                rules = r = JiraTransitionRules.ALL;
+            }
+        }
+        return r;
+    }
+
+    AbstractProject<?, ?> getJob() {
+        return job;
+    }
+
     /**
      * Returns the file that records the last/current polling activity.
      */
@@ -63,12 +122,21 @@ public class JiraTrigger extends Trigger<AbstractProject<?, ?>> {
         return new File(job.getRootDir(), "jira-polling.log");
     }
 
+    /**
+     * Appends a line to the size-capped log of this trigger.
+     */
+    void log(String message) {
+        if (job != null)
+            JiraTriggerLog.of(getLogFile()).println(message);
+    }
+
     @Override
     public void start(AbstractProject<?, ?> project, boolean newInstance) {
         super.start(project, newInstance);
+        JiraTriggerIndex.get().add(this);
         if (newInstance && getDescriptor().isManageHook()) {
             // make sure we have hooks installed. do this lazily to avoid blocking the UI thread.
-            getDescriptor().queue.execute(new Runnable() {
+            getDescriptor().schedule(project.getFullName(), new Runnable() {
                 public void run() {
                     createJenkinsHook(null, projectKey);
                 }
@@ -83,6 +151,7 @@ public class JiraTrigger extends Trigger<AbstractProject<?, ?>> {
 
     @Override
     public void stop() {
+        JiraTriggerIndex.get().remove(this);
         if (getDescriptor().isManageHook()) {
             LOGGER.log(WARNING, "TODO: delete Jira webhooks automatically");
         }
@@ -120,27 +189,64 @@ public class JiraTrigger extends Trigger<AbstractProject<?, ?>> {
             return "JiraPollLog";
         }
 
+        /**
+         * Returns the tail of the log, at most {@link #TAIL_BYTES} of it.
+         */
         public String getLog() throws IOException {
-            return Util.loadFile(getLogFile());
+            return JiraTriggerLog.tail(getLogFile(), TAIL_BYTES);
+        }
+
+        public AnnotatedLargeText<GitHubWebHookPollingAction> getLogText() {
+            return new AnnotatedLargeText<GitHubWebHookPollingAction>(getLogFile(), Charset.forName("UTF-8"), false, this);
+        }
+
+        /**
+         * Offset the log page starts streaming from, so only its tail is sent.
+         */
+        public long getTailOffset() {
+            return Math.max(0, getLogFile().length() - TAIL_BYTES);
         }
 
         /**
-         * Writes the annotated log to the given output.
+         * Writes the tail of the annotated log to the given output.
          *
          * @since 1.350
          */
         public void writeLogTo(XMLOutput out) throws IOException {
-            new AnnotatedLargeText<GitHubWebHookPollingAction>(getLogFile(), Charset.defaultCharset(), true, this).writeHtmlTo(0, out.asWriter());
+            getLogText().writeHtmlTo(getTailOffset(), out.asWriter());
+        }
+
+        /**
+         * Sends the log from the offset the page asks for, and keeps the page polling for new lines.
+         * The page starts again from the top of the file once the log is rotated.
+         */
+        public void doProgressiveLog(StaplerRequest req, StaplerResponse rsp) throws IOException {
+            getLogText().doProgressiveHtml(req, rsp);
         }
     }
 
     @Extension
     public static class DescriptorImpl extends TriggerDescriptor {
-        private transient final SequentialExecutionQueue queue = new SequentialExecutionQueue(MasterComputer.threadPoolForRemoting);
+        private transient volatile StripedExecutor scheduler;
+
+        private transient volatile JiraEventIngestion ingestion;
 
         private boolean manageHook;
         private String hookUrl;
         private volatile List<Credential> credentials = new ArrayList<Credential>();
+        private boolean asyncIngestion = true;
+        private int ingestionWorkers = DEFAULT_INGESTION_WORKERS;
+        private int ingestionQueueCapacity = DEFAULT_INGESTION_QUEUE_CAPACITY;
+        private int schedulingLanes = DEFAULT_SCHEDULING_LANES;
+        private long coalescingWindowMillis;
+        private int maxPendingEvents = DEFAULT_MAX_PENDING_EVENTS;
+        private double projectRateLimit;
+        private int projectBurst = DEFAULT_PROJECT_BURST;
+        private int listenerQueueCapacity = DEFAULT_LISTENER_QUEUE_CAPACITY;
+        private long listenerTimeoutMillis = DEFAULT_LISTENER_TIMEOUT_MILLIS;
+        private String reconciliationJql;
+        private int reconciliationIntervalMinutes = DEFAULT_RECONCILIATION_INTERVAL_MINUTES;
+        private double payloadSampleRate;
 
         public DescriptorImpl() {
             load();
@@ -183,6 +289,155 @@ public class JiraTrigger extends Trigger<AbstractProject<?, ?>> {
             return credentials;
         }
 
+        /**
+         * True if the webhook should acknowledge events right away and process them on the worker pool.
+         */
+        public boolean isAsyncIngestion() {
+            return asyncIngestion;
+        }
+
+        public int getIngestionWorkers() {
+            return ingestionWorkers;
+        }
+
+        public int getIngestionQueueCapacity() {
+            return ingestionQueueCapacity;
+        }
+
+        public int getSchedulingLanes() {
+            return schedulingLanes;
+        }
+
+        /**
+         * Events for the same issue received within this window are merged, and only the latest one triggers builds.
+         * 0 disables coalescing.
+         */
+        public long getCoalescingWindowMillis() {
+            return coalescingWindowMillis;
+        }
+
+        /**
+         * Events admitted but not handed to the triggers yet, above which the webhook answers 429. 0 for no limit.
+         */
+        public int getMaxPendingEvents() {
+            return maxPendingEvents;
+        }
+
+        /**
+         * Sustained events per second accepted for each Jira project. 0 for no limit.
+         */
+        public double getProjectRateLimit() {
+            return projectRateLimit;
+        }
+
+        /**
+         * Events a Jira project can send at once on top of {@link #getProjectRateLimit()}.
+         */
+        public int getProjectBurst() {
+            return projectBurst;
+        }
+
+        /**
+         * Events queued for each {@link JiraWebHook.Listener} before new ones are dropped.
+         */
+        public int getListenerQueueCapacity() {
+            return listenerQueueCapacity;
+        }
+
+        /**
+         * A listener call running longer than this is interrupted. 0 for no timeout.
+         */
+        public long getListenerTimeoutMillis() {
+            return listenerTimeoutMillis;
+        }
+
+        /**
+         * JQL of the issues {@link JiraReconciliation} polls for status changes the webhook missed. Null disables it.
+         */
+        public String getReconciliationJql() {
+            return reconciliationJql;
+        }
+
+        public int getReconciliationIntervalMinutes() {
+            return reconciliationIntervalMinutes;
+        }
+
+        /**
+         * Fraction (0 to 1) of the webhook payloads logged in full. 0 disables payload logging.
+         */
+        public double getPayloadSampleRate() {
+            return payloadSampleRate;
+        }
+
+        /**
+         * Returns the executor that schedules the builds, one lane per group of issue keys.
+         */
+        public StripedExecutor getScheduler() {
+            StripedExecutor s = scheduler;
+            if (s == null) {
+                synchronized (this) {
+                    s = scheduler;
+                    if (s == null)
+                        scheduler = s = new StripedExecutor("jira-trigger-scheduler", schedulingLanes);
+                }
+            }
+            return s;
+        }
+
+        /**
+         * Runs the task on the scheduler lane of the key. A task handed to a scheduler that a reconfiguration just
+         * replaced goes to the replacement instead, and runs on the calling thread if there is none, so that it is
+         * never lost.
+         */
+        void schedule(Object key, Runnable task) {
+            StripedExecutor s = getScheduler();
+            while (true) {
+                try {
+                    s.execute(key, task);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    final StripedExecutor current = getScheduler();
+                    if (current == s) {
+                        task.run();
+                        return;
+                    }
+                    s = current;
+                }
+            }
+        }
+
+        /**
+         * Returns the worker pool that processes the events received by {@link JiraWebHook}.
+         */
+        protected JiraEventIngestion getIngestion() {
+            JiraEventIngestion i = ingestion;
+            if (i == null) {
+                synchronized (this) {
+                    i = ingestion;
+                    if (i == null)
+                        ingestion = i = new JiraEventIngestion(ingestionWorkers, ingestionQueueCapacity);
+                }
+            }
+            return i;
+        }
+
+        /**
+         * Hands the task to the ingestion workers. A task handed to a pool that a reconfiguration just replaced goes to
+         * the replacement instead.
+         *
+         * @return false if the queue is full and the task was not accepted.
+         */
+        boolean ingest(Runnable task) {
+            JiraEventIngestion i = getIngestion();
+            while (!i.offer(task)) {
+                final JiraEventIngestion current = getIngestion();
+                if (!i.isShutdown() || current == i)
+                    return false;
+                i = current;
+            }
+            return true;
+        }
+
         @Override
         public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
             JSONObject hookMode = json.getJSONObject("hookMode");
@@ -194,10 +449,58 @@ public class JiraTrigger extends Trigger<AbstractProject<?, ?>> {
                 hookUrl = null;
             }
             credentials = req.bindJSONToList(Credential.class, hookMode.get("credentials"));
+            asyncIngestion = json.optBoolean("asyncIngestion", true);
+            ingestionWorkers = Math.max(1, json.optInt("ingestionWorkers", DEFAULT_INGESTION_WORKERS));
+            ingestionQueueCapacity = Math.max(1, json.optInt("ingestionQueueCapacity", DEFAULT_INGESTION_QUEUE_CAPACITY));
+            schedulingLanes = Math.max(1, json.optInt("schedulingLanes", DEFAULT_SCHEDULING_LANES));
+            coalescingWindowMillis = Math.max(0, json.optLong("coalescingWindowMillis", 0));
+            maxPendingEvents = Math.max(0, json.optInt("maxPendingEvents", DEFAULT_MAX_PENDING_EVENTS));
+            projectRateLimit = Math.max(0, json.optDouble("projectRateLimit", 0));
+            projectBurst = Math.max(1, json.optInt("projectBurst", DEFAULT_PROJECT_BURST));
+            listenerQueueCapacity = Math.max(1, json.optInt("listenerQueueCapacity", DEFAULT_LISTENER_QUEUE_CAPACITY));
+            listenerTimeoutMillis = Math.max(0, json.optLong("listenerTimeoutMillis", DEFAULT_LISTENER_TIMEOUT_MILLIS));
+            reconciliationJql = Util.fixEmptyAndTrim(json.optString("reconciliationJql"));
+            reconciliationIntervalMinutes = Math.max(1, json.optInt("reconciliationIntervalMinutes", DEFAULT_RECONCILIATION_INTERVAL_MINUTES));
+            payloadSampleRate = Math.min(1, Math.max(0, json.optDouble("payloadSampleRate", 0)));
             save();
+            resetIngestion();
+            resetScheduler();
             return true;
         }
 
+        /**
+         * Swaps in a scheduler with the new number of lanes, then drains the old one. Builds already queued on the
+         * old lanes still run, but may interleave with the first builds scheduled on the new lanes.
+         */
+        private synchronized void resetScheduler() {
+            final StripedExecutor old = scheduler;
+            if (old != null && old.getLanes().size() != schedulingLanes) {
+                scheduler = new StripedExecutor("jira-trigger-scheduler", schedulingLanes);
+                old.shutdown();
+            }
+        }
+
+        /**
+         * Swaps in a worker pool with the new size, then shuts the old one down. Events already queued on the old pool
+         * are still processed.
+         */
+        private synchronized void resetIngestion() {
+            final JiraEventIngestion old = ingestion;
+            if (old != null && (old.getWorkers() != ingestionWorkers || old.getCapacity() != ingestionQueueCapacity)) {
+                ingestion = new JiraEventIngestion(ingestionWorkers, ingestionQueueCapacity);
+                old.shutdown();
+            }
+        }
+
+        public FormValidation doCheckTransitions(@QueryParameter String value) {
+            try {
+                JiraTransitionRules.compile(value);
+                return FormValidation.ok();
+            } catch (IllegalArgumentException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
         public static DescriptorImpl get() {
             return Trigger.all().get(DescriptorImpl.class);
         }
@@ -207,6 +510,20 @@ public class JiraTrigger extends Trigger<AbstractProject<?, ?>> {
         }
     }
 
+    /**
+     * Bytes of the log the log page loads at first.
+     */
+    static final int TAIL_BYTES = 64 * 1024;
+
+    public static final int DEFAULT_INGESTION_WORKERS = 2;
+    public static final int DEFAULT_INGESTION_QUEUE_CAPACITY = 1000;
+    public static final int DEFAULT_SCHEDULING_LANES = 4;
+    public static final int DEFAULT_MAX_PENDING_EVENTS = 2000;
+    public static final int DEFAULT_PROJECT_BURST = 50;
+    public static final int DEFAULT_LISTENER_QUEUE_CAPACITY = 1000;
+    public static final long DEFAULT_LISTENER_TIMEOUT_MILLIS = 30000;
+    public static final int DEFAULT_RECONCILIATION_INTERVAL_MINUTES = 5;
+
     /**
      * Set to false to prevent the user from overriding the hook URL.
      */
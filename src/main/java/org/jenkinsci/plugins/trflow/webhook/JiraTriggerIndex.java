@@ -0,0 +1,162 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+import hudson.security.ACL;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Index of the {@link JiraTrigger}s by Jira project key, so dispatching an event is a map lookup instead of a walk
+ * over every job.
+ * <p/>
+ * Triggers register themselves in {@link JiraTrigger#start(AbstractProject, boolean)} and unregister in
+ * {@link JiraTrigger#stop()}. The {@link ItemListener} callbacks cover deleted jobs and configuration reloads, and
+ * drop the {@link JiraTriggerLog}s of deleted and renamed jobs.
+ * Triggers without a project key listen to every project.
+ * <p/>
+ * Lookups are lock-free. Changes, including a whole {@link #rebuild()}, are made under the lock of the index, so a
+ * trigger started or stopped while the index is rebuilt is not lost in the swap.
+ */
+@Extension
+public class JiraTriggerIndex extends ItemListener {
+    private static final String ANY_PROJECT = "*";
+
+    private volatile ConcurrentMap<String, Set<JiraTrigger>> triggers = new ConcurrentHashMap<String, Set<JiraTrigger>>();
+
+    protected synchronized void add(JiraTrigger trigger) {
+        add(triggers, trigger);
+    }
+
+    private static void add(ConcurrentMap<String, Set<JiraTrigger>> triggers, JiraTrigger trigger) {
+        final String key = normalize(trigger.getProjectKey());
+        Set<JiraTrigger> set = triggers.get(key);
+        if (set == null) {
+            final Set<JiraTrigger> created = new CopyOnWriteArraySet<JiraTrigger>();
+            set = triggers.putIfAbsent(key, created);
+            if (set == null)
+                set = created;
+        }
+        set.add(trigger);
+    }
+
+    protected synchronized void remove(JiraTrigger trigger) {
+        for (Set<JiraTrigger> set : triggers.values())
+            set.remove(trigger);
+    }
+
+    /**
+     * Returns the triggers interested in events of the given Jira project.
+     */
+    public Collection<JiraTrigger> lookup(String projectKey) {
+        final Set<JiraTrigger> matching = triggers.get(normalize(projectKey));
+        final Set<JiraTrigger> any = triggers.get(ANY_PROJECT);
+        if (any == null || any.isEmpty())
+            return matching != null ? matching : Collections.<JiraTrigger>emptySet();
+        if (matching == null || matching.isEmpty() || ANY_PROJECT.equals(normalize(projectKey)))
+            return any;
+
+        final List<JiraTrigger> all = new ArrayList<JiraTrigger>(matching.size() + any.size());
+        all.addAll(matching);
+        all.addAll(any);
+        return all;
+    }
+
+    /**
+     * True if some trigger is configured for this very Jira project, as opposed to listening to every project.
+     */
+    public boolean hasProject(String projectKey) {
+        final String key = normalize(projectKey);
+        if (ANY_PROJECT.equals(key))
+            return false;
+        final Set<JiraTrigger> matching = triggers.get(key);
+        return matching != null && !matching.isEmpty();
+    }
+
+    @Override
+    public void onLoaded() {
+        rebuild();
+    }
+
+    @Override
+    public void onCreated(Item item) {
+        register(item);
+    }
+
+    @Override
+    public void onCopied(Item src, Item item) {
+        register(item);
+    }
+
+    @Override
+    public void onUpdated(Item item) {
+        register(item);
+    }
+
+    @Override
+    public synchronized void onDeleted(Item item) {
+        for (Set<JiraTrigger> set : triggers.values()) {
+            for (JiraTrigger trigger : set) {
+                if (trigger.getJob() == item)
+                    set.remove(trigger);
+            }
+        }
+        JiraTriggerLog.prune();
+    }
+
+    @Override
+    public void onRenamed(Item item, String oldName, String newName) {
+        JiraTriggerLog.prune();
+    }
+
+    private synchronized void register(Item item) {
+        register(triggers, item);
+    }
+
+    private static void register(ConcurrentMap<String, Set<JiraTrigger>> triggers, Item item) {
+        if (item instanceof AbstractProject) {
+            final JiraTrigger trigger = ((AbstractProject<?, ?>) item).getTrigger(JiraTrigger.class);
+            if (trigger != null && trigger.getJob() == item)
+                add(triggers, trigger);
+        }
+    }
+
+    /**
+     * Rebuilds the whole index. Only needed when Jenkins (re)loads its configuration.
+     * The new index replaces the old one at once, so events dispatched meanwhile still find their triggers.
+     */
+    protected synchronized void rebuild() {
+        // run in high privilege to see all the projects anonymous users don't see.
+        Authentication old = SecurityContextHolder.getContext().getAuthentication();
+        SecurityContextHolder.getContext().setAuthentication(ACL.SYSTEM);
+        try {
+            final ConcurrentMap<String, Set<JiraTrigger>> rebuilt = new ConcurrentHashMap<String, Set<JiraTrigger>>();
+            for (AbstractProject<?, ?> job : Hudson.getInstance().getAllItems(AbstractProject.class))
+                register(rebuilt, job);
+            triggers = rebuilt;
+        } finally {
+            SecurityContextHolder.getContext().setAuthentication(old);
+        }
+    }
+
+    private static String normalize(String projectKey) {
+        return projectKey == null || projectKey.trim().isEmpty() ? ANY_PROJECT : projectKey.trim().toUpperCase(Locale.ENGLISH);
+    }
+
+    public static JiraTriggerIndex get() {
+        return ItemListener.all().get(JiraTriggerIndex.class);
+    }
+}
@@ -0,0 +1,132 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Size-capped log of the Jira events a {@link JiraTrigger} matched and what became of them.
+ * <p/>
+ * Once the file reaches {@link #MAX_SIZE} bytes it is renamed to {@code <name>.1}, the older ones shifted up to
+ * {@link #MAX_FILES}, and a new file started. Readers only ever load a bounded tail of it.
+ */
+final class JiraTriggerLog {
+    private static final Logger LOGGER = Logger.getLogger(JiraTriggerLog.class.getName());
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final ConcurrentMap<File, JiraTriggerLog> LOGS = new ConcurrentHashMap<File, JiraTriggerLog>();
+
+    private final File file;
+
+    private JiraTriggerLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the log writing the given file. Triggers replaced by a reconfiguration share it with their successor.
+     */
+    static JiraTriggerLog of(File file) {
+        JiraTriggerLog log = LOGS.get(file);
+        if (log == null) {
+            final JiraTriggerLog created = new JiraTriggerLog(file);
+            log = LOGS.putIfAbsent(file, created);
+            if (log == null)
+                log = created;
+        }
+        return log;
+    }
+
+    /**
+     * Forgets the logs whose job directory is gone, i.e. of deleted or renamed jobs.
+     */
+    static void prune() {
+        for (Iterator<File> it = LOGS.keySet().iterator(); it.hasNext(); ) {
+            if (!it.next().getParentFile().isDirectory())
+                it.remove();
+        }
+    }
+
+    /**
+     * Appends a timestamped line. Failures are logged and otherwise ignored: this log is informational.
+     */
+    synchronized void println(String message) {
+        final byte[] line = ("[" + new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.ENGLISH).format(new Date()) + "] "
+                + message + "\n").getBytes(UTF8);
+        try {
+            if (file.length() + line.length > MAX_SIZE)
+                rotate();
+            final OutputStream out = new FileOutputStream(file, true);
+            try {
+                out.write(line);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Unable to write " + file, e);
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (!file.exists())
+            return;
+        final File oldest = rotated(MAX_FILES);
+        if (oldest.exists() && !oldest.delete())
+            throw new IOException("Unable to delete " + oldest);
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            final File f = rotated(i);
+            if (f.exists() && !f.renameTo(rotated(i + 1)))
+                throw new IOException("Unable to rename " + f);
+        }
+        if (MAX_FILES > 0 ? !file.renameTo(rotated(1)) : !file.delete())
+            throw new IOException("Unable to rotate " + file);
+    }
+
+    private File rotated(int n) {
+        return new File(file.getPath() + "." + n);
+    }
+
+    /**
+     * Reads at most the last {@code maxBytes} of the given file, starting at a line boundary when possible.
+     */
+    static String tail(File file, int maxBytes) throws IOException {
+        if (!file.exists())
+            return "";
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long start = Math.max(0, raf.length() - maxBytes);
+            final byte[] buf = new byte[(int) (raf.length() - start)];
+            raf.seek(start);
+            raf.readFully(buf);
+            int from = 0;
+            if (start > 0) {
+                while (from < buf.length && buf[from] != '\n')
+                    from++;
+                from = Math.min(buf.length, from + 1);
+            }
+            return new String(buf, from, buf.length - from, UTF8);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Size in bytes above which the log is rotated.
+     */
+    public static final long MAX_SIZE = Long.getLong(JiraTriggerLog.class.getName() + ".maxSize", 1024 * 1024);
+
+    /**
+     * Number of rotated files kept next to the current one.
+     */
+    public static final int MAX_FILES = Integer.getInteger(JiraTriggerLog.class.getName() + ".maxFiles", 2);
+}
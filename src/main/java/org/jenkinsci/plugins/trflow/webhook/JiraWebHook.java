@@ -2,22 +2,43 @@ package org.jenkinsci.plugins.trflow.webhook;
 
 import hudson.Extension;
 import hudson.ExtensionPoint;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.AbstractProject;
 import hudson.model.Hudson;
 import hudson.model.RootAction;
 import hudson.model.UnprotectedRootAction;
 import hudson.security.ACL;
 import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.acegisecurity.Authentication;
 import org.acegisecurity.context.SecurityContextHolder;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.interceptor.RequirePOST;
 
-import java.util.Scanner;
+import javax.servlet.ServletException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
-import static net.sf.json.JSONObject.fromObject;
+import static java.util.logging.Level.SEVERE;
+import static javax.servlet.http.HttpServletResponse.SC_ACCEPTED;
+import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
+import static javax.servlet.http.HttpServletResponse.SC_OK;
+import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
 
 /**
  * Receives Jira hook (see <a href="https://developer.atlassian.com/display/JIRADEV/JIRA+Webhooks+Overview">JIRA Webhooks Overview</a>).
@@ -28,6 +49,26 @@ import static net.sf.json.JSONObject.fromObject;
 public class JiraWebHook implements UnprotectedRootAction {
     private static final Logger LOGGER = Logger.getLogger(JiraWebHook.class.getName());
     public static final String URLNAME = "jira-webhook";
+    private static final int SC_TOO_MANY_REQUESTS = 429; // not in the Servlet API
+
+    private final JiraEventFilter filter = new JiraEventFilter();
+    private final JiraWebHookAdmission admission = new JiraWebHookAdmission();
+    private final JiraWebHookListenerDispatcher listeners = new JiraWebHookListenerDispatcher();
+    private final JiraEventCoalescer coalescer = new JiraEventCoalescer(new JiraEventCoalescer.Sink() {
+        public void deliver(JiraEvent event) {
+            admission.release();
+            processPayload(event);
+        }
+
+        public void superseded(JiraEvent event) {
+            admission.release();
+            audit.record(event, "coalesced", event.getReceivedNanos());
+            markDone(event); // the event that replaced it is journaled too
+        }
+    });
+    private final JiraWebHookMetrics metrics = new JiraWebHookMetrics();
+    private final JiraEventAudit audit = new JiraEventAudit(JiraEventAudit.SIZE);
+    private JiraEventJournal journal;
 
     public String getIconFileName() {
         return null;
@@ -128,25 +169,221 @@ public class JiraWebHook implements UnprotectedRootAction {
 
     /**
      * Receives the webhook call.
+     * <p/>
+     * The body is read once as a stream and only the values a {@link JiraEvent} needs are extracted.
+     * Events the {@link JiraEventFilter} is not interested in are dropped as soon as that is known.
+     * Accepted events are written to the {@link JiraEventJournal} before Jira gets an answer. Unless the trigger is
+     * configured for synchronous ingestion, the event is then only queued here, and Jira gets a 202 right away.
+     * The worker pool of {@link JiraTrigger.DescriptorImpl} does the rest.
+     * <p/>
+     * What became of every event is recorded in the {@link JiraEventAudit}. Payloads are only logged for the
+     * fraction of the requests set by {@link JiraTrigger.DescriptorImpl#getPayloadSampleRate()}.
      */
     @RequirePOST
-    public void doIndex(StaplerRequest req) {
+    public HttpResponse doIndex(StaplerRequest req) throws IOException {
+        final long start = System.nanoTime();
+        metrics.requests.incrementAndGet();
+        try {
+            final JiraEventReader reader = JiraEventReader.utf8(body(req), filter, true);
+            final JiraEvent event;
+            try {
+                if (!reader.hasNext()) {
+                    metrics.malformed.incrementAndGet();
+                    audit.record(null, null, null, "malformed", start);
+                    return HttpResponses.error(SC_BAD_REQUEST, "Expected a Jira webhook JSON payload");
+                }
+                event = reader.read();
+                metrics.parse.recordSince(start);
+            } catch (JiraEventReader.MalformedPayload e) {
+                metrics.malformed.incrementAndGet();
+                auditDropped(reader, "malformed", start);
+                return HttpResponses.error(SC_BAD_REQUEST, "Malformed Jira webhook payload: " + e.getMessage());
+            }
+            if (event == null) { // we only care when status changed
+                LOGGER.fine("ignoring event. Status has not changed.");
+                auditDropped(reader, "ignored", start);
+                return HttpResponses.ok();
+            }
+            LOGGER.fine("Received event " + event.getType() + " for issue " + event.getIssue());
+            return respond(event);
+        } finally {
+            metrics.receive.recordSince(start);
+        }
+    }
+
+    /**
+     * Receives a batch of webhook payloads, either newline-delimited or as a JSON array.
+     * <p/>
+     * The body is streamed through the same reader and pipeline as {@link #doIndex(StaplerRequest)}, one event at a
+     * time. The response lists the outcome of every event in order. A malformed payload stops the batch: the events
+     * before it have been processed, the ones after it have not.
+     */
+    @RequirePOST
+    public void doBatch(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        final long start = System.nanoTime();
+        metrics.requests.incrementAndGet();
+        final JSONArray results = new JSONArray();
+        int accepted = 0, ignored = 0, rejected = 0;
+        String error = null;
+
+        final JiraEventReader reader = JiraEventReader.utf8(body(req), filter, false);
+        long eventStart = start;
+        try {
+            for (int index = 0; reader.hasNext(); index++) {
+                final JiraEvent event = reader.read();
+                final JSONObject result = new JSONObject().element("index", index);
+                if (event == null) {
+                    auditDropped(reader, "ignored", eventStart);
+                    result.element("status", "ignored");
+                    ignored++;
+                } else {
+                    result.element("key", event.getIssue().getKey());
+                    final Outcome outcome = accept(event);
+                    metrics.onOutcome(outcome);
+                    if (outcome == Outcome.ACCEPTED) {
+                        result.element("status", "accepted");
+                        accepted++;
+                    } else {
+                        result.element("status", "rejected").element("reason", outcome.reason);
+                        if (outcome.shed)
+                            result.element("retryAfter", admission.retryAfterSeconds(outcome, event.getIssue().getProjectkey()));
+                        rejected++;
+                    }
+                }
+                results.add(result);
+                eventStart = System.nanoTime();
+            }
+        } catch (JiraEventReader.MalformedPayload e) {
+            metrics.malformed.incrementAndGet();
+            auditDropped(reader, "malformed", eventStart);
+            error = "Malformed Jira webhook payload at index " + results.size() + ": " + e.getMessage();
+        }
+
+        final JSONObject body = new JSONObject()
+                .element("accepted", accepted)
+                .element("ignored", ignored)
+                .element("rejected", rejected)
+                .element("results", results);
+        if (error != null)
+            body.element("error", error);
+
+        rsp.setStatus(error != null && results.isEmpty() ? SC_BAD_REQUEST : SC_OK);
+        rsp.setContentType("application/json;charset=UTF-8");
+        body.write(rsp.getWriter());
+        metrics.receive.recordSince(start);
+    }
+
+    /**
+     * Exposes the {@link JiraWebHookMetrics} in the Prometheus text format.
+     */
+    public void doMetrics(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        Jenkins.getInstance().checkPermission(Jenkins.READ);
+        rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        metrics.writeTo(new PrintWriter(rsp.getWriter()), this);
+    }
+
+    /**
+     * Journals and dispatches an accepted event, and returns the response Jira gets.
+     */
+    protected HttpResponse respond(JiraEvent event) {
+        final Outcome outcome = accept(event);
+        metrics.onOutcome(outcome);
+        if (outcome == Outcome.ACCEPTED)
+            return JiraTrigger.DescriptorImpl.get().isAsyncIngestion() ? HttpResponses.status(SC_ACCEPTED) : HttpResponses.ok();
+        if (outcome.shed)
+            return tooManyRequests(outcome.reason, admission.retryAfterSeconds(outcome, event.getIssue().getProjectkey()));
+        return HttpResponses.error(SC_SERVICE_UNAVAILABLE, outcome.reason);
+    }
+
+    private static HttpResponse tooManyRequests(final String reason, final int retryAfterSeconds) {
+        return new HttpResponse() {
+            public void generateResponse(StaplerRequest req, StaplerResponse rsp, Object node) throws IOException, ServletException {
+                rsp.setStatus(SC_TOO_MANY_REQUESTS);
+                rsp.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+                rsp.setContentType("text/plain;charset=UTF-8");
+                rsp.getWriter().println(reason);
+            }
+        };
+    }
+
+    /**
+     * Returns the request body, buffered and logged if this request is sampled for payload logging.
+     */
+    private InputStream body(StaplerRequest req) throws IOException {
+        final double rate = JiraTrigger.DescriptorImpl.get().getPayloadSampleRate();
+        if (rate <= 0 || ThreadLocalRandom.current().nextDouble() >= rate)
+            return req.getInputStream();
+        final byte[] payload = IOUtils.toByteArray(req.getInputStream());
+        LOGGER.info("Sampled Jira webhook payload: " + new String(payload, StandardCharsets.UTF_8));
+        return new ByteArrayInputStream(payload);
+    }
+
+    private void auditDropped(JiraEventReader reader, String decision, long start) {
+        final String webhookEvent = reader.getLastWebhookEvent();
+        final JiraEventType type = webhookEvent != null ? JiraEventType.valueOfFromId(webhookEvent) : null;
+        audit.record(reader.getLastKey(), type != null ? type.toString() : webhookEvent, null, decision, start);
+    }
+
+    /**
+     * Admits, journals and dispatches an event.
+     */
+    protected Outcome accept(JiraEvent event) {
+        final Outcome outcome = admitAndDispatch(event);
+        if (outcome != Outcome.ACCEPTED)
+            audit.record(event, "rejected: " + outcome.reason, event.getReceivedNanos());
+        return outcome;
+    }
+
+    private Outcome admitAndDispatch(JiraEvent event) {
+        final JiraTrigger.DescriptorImpl descriptor = JiraTrigger.DescriptorImpl.get();
+        final Outcome shed = admission.admit(event.getIssue().getProjectkey(),
+                descriptor.getMaxPendingEvents(), descriptor.getProjectRateLimit(), descriptor.getProjectBurst());
+        if (shed != null) {
+            LOGGER.fine("Shedding event for issue " + event.getIssue().getKey() + ": " + shed.reason);
+            return shed;
+        }
+
+        final JiraEvent journaled;
+        try {
+            journaled = journal(event);
+        } catch (IOException e) {
+            LOGGER.log(SEVERE, "Unable to journal Jira event. Rejecting it.", e);
+            admission.reject(event.getIssue().getProjectkey());
+            return Outcome.JOURNAL_FAILED;
+        }
+
+        if (!JiraTrigger.DescriptorImpl.get().isAsyncIngestion()) {
+            process(journaled);
+            return Outcome.ACCEPTED;
+        }
+        if (!enqueue(journaled)) {
+            LOGGER.warning("Jira event queue is full. Rejecting event.");
+            admission.reject(event.getIssue().getProjectkey());
+            markDone(journaled); // Jira will send it again
+            return Outcome.QUEUE_FULL;
+        }
+        return Outcome.ACCEPTED;
+    }
+
+    private boolean enqueue(final JiraEvent event) {
+        return JiraTrigger.DescriptorImpl.get().ingest(new Runnable() {
+            public void run() {
+                process(event);
+            }
+        });
+    }
+
+    private void process(JiraEvent event) {
         try {
-            final JSONObject payload = fromObject(new Scanner(req.getInputStream()).useDelimiter("\\A").next());
-            LOGGER.warning("Received request: " + payload.toString());
-            final JiraEvent event = new JiraEvent(payload);
-            if (event.hasStatusChanged()) // we only care when status changed
-                processPayload(event);
-            else
-                LOGGER.warning("ignoring event. Status has not changed.");
+            coalescer.offer(event, JiraTrigger.DescriptorImpl.get().getCoalescingWindowMillis());
         } catch (Exception e) {
-            LOGGER.severe(e.getMessage());
-            e.printStackTrace();
+            LOGGER.log(SEVERE, "Unable to process Jira event", e);
         }
     }
 
     public void processPayload(JiraEvent event) {
         LOGGER.info(String.format("Received event '%s' for issue %s ", event, event.getIssue().getKey()));
+        JiraReconciliation.get().observe(event);
 
         // run in high privilege to see all the projects anonymous users don't see.
         // this is safe because when we actually schedule a build, it's a build that can
@@ -154,29 +391,176 @@ public class JiraWebHook implements UnprotectedRootAction {
         Authentication old = SecurityContextHolder.getContext().getAuthentication();
         SecurityContextHolder.getContext().setAuthentication(ACL.SYSTEM);
         try {
+            final long start = System.nanoTime();
+            final List<JiraTrigger> triggers = new ArrayList<JiraTrigger>();
+            int unmatched = 0;
+            for (JiraTrigger trigger : JiraTriggerIndex.get().lookup(event.getIssue().getProjectkey())) {
+                final AbstractProject<?, ?> job = trigger.getJob();
+                if (job == null || job.getTrigger(JiraTrigger.class) != trigger) // skip triggers of jobs reconfigured meanwhile
+                    continue;
+                if (trigger.accepts(event))
+                    triggers.add(trigger);
+                else {
+                    unmatched++;
+                    trigger.log(event + ": skipped, transition not in " + trigger.getTransitions().replaceAll("\\s*[\\r\\n]+\\s*", ", "));
+                }
+            }
+            metrics.match.recordSince(start);
+            metrics.triggersMatched.addAndGet(triggers.size());
+            metrics.triggersUnmatched.addAndGet(unmatched);
+            audit.record(event, (triggers.isEmpty() ? "no matching job" : "triggered " + triggers.size() + " job(s)")
+                    + (unmatched > 0 ? ", " + unmatched + " skipped by transition rules" : ""), event.getReceivedNanos());
 
-            for (AbstractProject<?, ?> job : Hudson.getInstance().getAllItems(AbstractProject.class))
-                triggerJob(job.getTrigger(JiraTrigger.class), job, event);
+            final Runnable scheduled = whenAllScheduled(event, triggers.size());
+            for (JiraTrigger trigger : triggers)
+                triggerJob(trigger, trigger.getJob(), event, scheduled);
 
         } finally {
             SecurityContextHolder.getContext().setAuthentication(old);
         }
-        for (Listener listener : Jenkins.getInstance().getExtensionList(Listener.class)) {
-            listener.onEventReceived(event);
-        }
+
+        final JiraTrigger.DescriptorImpl descriptor = JiraTrigger.DescriptorImpl.get();
+        listeners.dispatch(Jenkins.getInstance().getExtensionList(Listener.class), event,
+                descriptor.getListenerQueueCapacity(), descriptor.getListenerTimeoutMillis());
     }
 
-    protected void triggerJob(JiraTrigger trigger, AbstractProject<?, ?> job, JiraEvent event) {
+    protected void triggerJob(JiraTrigger trigger, AbstractProject<?, ?> job, JiraEvent event, Runnable scheduled) {
         if (trigger != null) {
             LOGGER.fine("poking job " + job.getFullDisplayName());
-            trigger.scheduleBuild(new JiraEventCause(event));
+            trigger.scheduleBuild(new JiraEventCause(event), scheduled);
         }
     }
 
+    /**
+     * Returns the callback each trigger runs once its build is scheduled. The last one marks the event done in the
+     * journal.
+     */
+    private Runnable whenAllScheduled(final JiraEvent event, int triggers) {
+        if (triggers == 0) {
+            markDone(event);
+            return null;
+        }
+        final AtomicInteger remaining = new AtomicInteger(triggers);
+        return new Runnable() {
+            public void run() {
+                if (remaining.decrementAndGet() == 0)
+                    markDone(event);
+            }
+        };
+    }
+
+    private JiraEvent journal(JiraEvent event) throws IOException {
+        final JiraEventJournal j = getJournal();
+        return j != null ? j.append(event) : event;
+    }
+
+    private void markDone(JiraEvent event) {
+        final JiraEventJournal j = getJournal();
+        if (j != null)
+            j.markDone(event);
+    }
+
+    /**
+     * Returns the journal of accepted events, or null if it is disabled or could not be opened.
+     */
+    synchronized JiraEventJournal getJournal() {
+        if (journal == null && !DISABLE_JOURNAL) {
+            final JiraEventJournal j = new JiraEventJournal(new File(Jenkins.getInstance().getRootDir(), "jira-webhook-journal"));
+            try {
+                j.open();
+                journal = j;
+            } catch (IOException e) {
+                LOGGER.log(SEVERE, "Unable to open the Jira event journal. Events will not survive a restart.", e);
+                DISABLE_JOURNAL = true;
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Replays the events that were received but not scheduled before the last shutdown.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void replayJournal() {
+        final JiraWebHook hook = get();
+        final JiraEventJournal j = hook.getJournal();
+        if (j == null)
+            return;
+        for (JiraEvent event : j.recover()) {
+            hook.admission.forceAdmit();
+            if (!JiraTrigger.DescriptorImpl.get().isAsyncIngestion() || !hook.enqueue(event))
+                hook.process(event);
+        }
+    }
+
+    /**
+     * Counts the events accepted and dropped before processing.
+     */
+    public JiraEventFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Limits the events the webhook accepts, and counts the ones it sheds.
+     */
+    public JiraWebHookAdmission getAdmission() {
+        return admission;
+    }
+
+    /**
+     * Delivers events to the {@link Listener}s, and counts deliveries, drops and errors per listener.
+     */
+    public JiraWebHookListenerDispatcher getListenerDispatcher() {
+        return listeners;
+    }
+
+    /**
+     * Coalesces bursts of events for the same issue before they reach {@link #processPayload(JiraEvent)}.
+     */
+    JiraEventCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * The last events received and what became of them, browsable at {@code jira-webhook/audit/}.
+     */
+    public JiraEventAudit getAudit() {
+        return audit;
+    }
+
+    /**
+     * Counters and stage latencies of the webhook pipeline, also served at {@code jira-webhook/metrics}.
+     */
+    public JiraWebHookMetrics getMetrics() {
+        return metrics;
+    }
+
     public static JiraWebHook get() {
         return Hudson.getInstance().getExtensionList(RootAction.class).get(JiraWebHook.class);
     }
 
+    /**
+     * What happened to an event accepted by the {@link JiraEventFilter}.
+     */
+    protected enum Outcome {
+        ACCEPTED(null, false),
+        QUEUE_FULL("Jira event queue is full", false),
+        JOURNAL_FAILED("Unable to record the Jira event", false),
+        OVER_BUDGET("Too many pending Jira events", true),
+        THROTTLED("Too many Jira events for this project", true);
+
+        final String reason;
+        /**
+         * True if the event was shed by {@link JiraWebHookAdmission}, and the client should retry later.
+         */
+        final boolean shed;
+
+        Outcome(String reason, boolean shed) {
+            this.reason = reason;
+            this.shed = shed;
+        }
+    }
+
     /**
      * Other plugins may be interested in listening for these updates.
      */
@@ -184,10 +568,17 @@ public class JiraWebHook implements UnprotectedRootAction {
 
         /**
          * Called when an event is received from Jira.
+         * <p/>
+         * Called on a thread dedicated to this listener, in the order the events were processed. Calls taking longer
+         * than the configured timeout are interrupted.
          *
          * @param event the event.
          */
         public abstract void onEventReceived(JiraEvent event);
     }
 
-}
\ No newline at end of file
+    /**
+     * Set to true to stop journaling accepted events. They are then lost if Jenkins stops before scheduling them.
+     */
+    public static boolean DISABLE_JOURNAL = Boolean.getBoolean(JiraWebHook.class.getName() + ".disableJournal");
+}
@@ -0,0 +1,203 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for the Jira webhook.
+ * <p/>
+ * Two limits apply to the events the {@link JiraEventFilter} lets through:
+ * <ul>
+ * <li>a budget of pending events, i.e. admitted but not handed to the triggers yet (queued for a worker or waiting
+ * for their coalescing window to close);</li>
+ * <li>a token bucket per Jira project key, refilled at a fixed rate.</li>
+ * </ul>
+ * An event over either limit is shed, and the webhook answers 429 with a {@code Retry-After} header. A token is only
+ * taken from the bucket of an event that is admitted, and given back if the event is rejected downstream.
+ * <p/>
+ * The project key comes from the payload, so only the projects some {@link JiraTrigger} is configured for get their
+ * own bucket and metrics label. The events of every other project share the {@link #OTHER_PROJECTS} ones.
+ */
+public class JiraWebHookAdmission {
+    static final int OVER_BUDGET_RETRY_AFTER_SECONDS = 5;
+    static final String OTHER_PROJECTS = "other";
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+    private final AtomicLong shedOverBudget = new AtomicLong();
+    private final AtomicLong shedThrottled = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> shedByProject = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Tries to admit an event of the given project.
+     *
+     * @param maxPending   budget of pending events, 0 for no limit.
+     * @param ratePerSecond sustained events per second per project, 0 for no limit.
+     * @param burst        events a project can send at once on top of its rate.
+     * @return null if admitted, otherwise the reason the event was shed.
+     */
+    JiraWebHook.Outcome admit(String projectKey, int maxPending, double ratePerSecond, int burst) {
+        final String key = key(projectKey);
+        if (maxPending > 0) {
+            int p;
+            do {
+                p = pending.get();
+                if (p >= maxPending) {
+                    shedOverBudget.incrementAndGet();
+                    countShed(key);
+                    return JiraWebHook.Outcome.OVER_BUDGET;
+                }
+            } while (!pending.compareAndSet(p, p + 1));
+        } else {
+            pending.incrementAndGet();
+        }
+        if (ratePerSecond > 0 && !bucket(key, ratePerSecond, burst).tryTake()) {
+            pending.decrementAndGet();
+            shedThrottled.incrementAndGet();
+            countShed(key);
+            return JiraWebHook.Outcome.THROTTLED;
+        }
+        return null;
+    }
+
+    /**
+     * Counts an event as pending regardless of the budget (e.g. events replayed from the journal).
+     */
+    void forceAdmit() {
+        pending.incrementAndGet();
+    }
+
+    /**
+     * The event is not pending anymore: it was handed to the triggers, superseded, or rejected downstream.
+     */
+    void release() {
+        pending.decrementAndGet();
+    }
+
+    /**
+     * The event was admitted but rejected downstream, so Jira will send it again: releases it and gives its token back.
+     */
+    void reject(String projectKey) {
+        release();
+        final TokenBucket b = buckets.get(key(projectKey));
+        if (b != null)
+            b.giveBack();
+    }
+
+    /**
+     * Seconds a client should wait before sending again an event shed for the given reason.
+     */
+    int retryAfterSeconds(JiraWebHook.Outcome outcome, String projectKey) {
+        if (outcome == JiraWebHook.Outcome.THROTTLED) {
+            final TokenBucket b = buckets.get(key(projectKey));
+            if (b != null)
+                return b.secondsUntilNextToken();
+        }
+        return OVER_BUDGET_RETRY_AFTER_SECONDS;
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    public long getShedOverBudget() {
+        return shedOverBudget.get();
+    }
+
+    public long getShedThrottled() {
+        return shedThrottled.get();
+    }
+
+    /**
+     * Events shed so far, by Jira project key. The projects without a trigger are counted under
+     * {@link #OTHER_PROJECTS}.
+     */
+    public Map<String, Long> getShedByProject() {
+        final Map<String, Long> r = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : shedByProject.entrySet())
+            r.put(e.getKey(), e.getValue().get());
+        return Collections.unmodifiableMap(r);
+    }
+
+    private void countShed(String key) {
+        AtomicLong c = shedByProject.get(key);
+        if (c == null) {
+            final AtomicLong created = new AtomicLong();
+            c = shedByProject.putIfAbsent(key, created);
+            if (c == null)
+                c = created;
+        }
+        c.incrementAndGet();
+    }
+
+    private TokenBucket bucket(String key, double ratePerSecond, int burst) {
+        TokenBucket b = buckets.get(key);
+        if (b == null) {
+            final TokenBucket created = new TokenBucket();
+            b = buckets.putIfAbsent(key, created);
+            if (b == null)
+                b = created;
+        }
+        b.configure(ratePerSecond, Math.max(1, burst));
+        return b;
+    }
+
+    /**
+     * The bucket and label of a project: its normalized key if a trigger is configured for it, {@link #OTHER_PROJECTS}
+     * otherwise.
+     */
+    private static String key(String projectKey) {
+        final JiraTriggerIndex index = JiraTriggerIndex.get();
+        if (projectKey == null || index == null || !index.hasProject(projectKey))
+            return OTHER_PROJECTS;
+        return projectKey.trim().toUpperCase(Locale.ENGLISH);
+    }
+
+    private static final class TokenBucket {
+        private double ratePerNano;
+        private double capacity;
+        private double tokens = -1;
+        private long refilledAt = System.nanoTime();
+
+        synchronized void configure(double ratePerSecond, int burst) {
+            ratePerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+            capacity = burst;
+            if (tokens < 0 || tokens > capacity)
+                tokens = capacity;
+        }
+
+        synchronized boolean tryTake() {
+            refill();
+            if (tokens < 1)
+                return false;
+            tokens--;
+            return true;
+        }
+
+        synchronized void giveBack() {
+            refill();
+            tokens = Math.min(capacity, tokens + 1);
+        }
+
+        synchronized int secondsUntilNextToken() {
+            refill();
+            if (tokens >= 1 || ratePerNano <= 0)
+                return 1;
+            final double nanos = (1 - tokens) / ratePerNano;
+            return (int) Math.max(1, Math.ceil(nanos / TimeUnit.SECONDS.toNanos(1)));
+        }
+
+        private void refill() {
+            final long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * ratePerNano);
+            refilledAt = now;
+        }
+    }
+}
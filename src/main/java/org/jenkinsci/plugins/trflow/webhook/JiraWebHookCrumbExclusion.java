@@ -18,7 +18,7 @@ public class JiraWebHookCrumbExclusion extends CrumbExclusion {
     @Override
     public boolean process(HttpServletRequest req, HttpServletResponse resp, FilterChain chain) throws IOException, ServletException {
         String pathInfo = req.getPathInfo();
-        if (pathInfo != null && pathInfo.equals(getExclusionPath())) {
+        if (pathInfo != null && (pathInfo.equals(getExclusionPath()) || isBatchPath(pathInfo))) {
             chain.doFilter(req, resp);
             return true;
         }
@@ -28,4 +28,9 @@ public class JiraWebHookCrumbExclusion extends CrumbExclusion {
     public String getExclusionPath() {
         return "/" + JiraWebHook.URLNAME + "/";
     }
+
+    private boolean isBatchPath(String pathInfo) {
+        final String batch = getExclusionPath() + "batch";
+        return pathInfo.equals(batch) || pathInfo.equals(batch + "/");
+    }
 }
\ No newline at end of file
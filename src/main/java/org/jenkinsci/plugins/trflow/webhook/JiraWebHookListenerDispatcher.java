@@ -0,0 +1,161 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import org.jenkinsci.plugins.trflow.util.NamedDaemonThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.WARNING;
+
+/**
+ * Delivers events to the {@link JiraWebHook.Listener}s without blocking the webhook.
+ * <p/>
+ * Every listener gets its own bounded queue and delivery thread, so events reach it in order and a slow or failing
+ * listener only affects itself. Events are dropped when its queue is full, and a call running longer than the
+ * timeout is interrupted. The capacity and timeout are read on every event, so configuration changes apply at once.
+ */
+public class JiraWebHookListenerDispatcher {
+    private static final Logger LOGGER = Logger.getLogger(JiraWebHookListenerDispatcher.class.getName());
+
+    private final ConcurrentMap<JiraWebHook.Listener, Lane> lanes = new ConcurrentHashMap<JiraWebHook.Listener, Lane>();
+    private final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(new NamedDaemonThreadFactory("jira-listener-watchdog"));
+
+    void dispatch(Iterable<? extends JiraWebHook.Listener> listeners, JiraEvent event, int capacity, long timeoutMillis) {
+        for (JiraWebHook.Listener listener : listeners)
+            lane(listener).offer(event, capacity, timeoutMillis);
+    }
+
+    /**
+     * Delivery statistics, one entry per listener that received events.
+     */
+    public List<Lane> getLanes() {
+        return new ArrayList<Lane>(lanes.values());
+    }
+
+    private Lane lane(JiraWebHook.Listener listener) {
+        Lane lane = lanes.get(listener);
+        if (lane == null) {
+            final Lane created = new Lane(listener);
+            lane = lanes.putIfAbsent(listener, created);
+            if (lane == null)
+                lane = created;
+            else
+                created.executor.shutdown();
+        }
+        return lane;
+    }
+
+    /**
+     * The queue and delivery thread of a single listener.
+     */
+    public final class Lane {
+        private final JiraWebHook.Listener listener;
+        private final ThreadPoolExecutor executor;
+        /**
+         * Events offered and not started yet, checked against the capacity instead of bounding the queue itself.
+         */
+        private final AtomicInteger queued = new AtomicInteger();
+        /**
+         * The delivery in progress, if any. The watchdog only interrupts the delivery thread while it is still the
+         * one it timed, under this lock.
+         */
+        private Object current;
+        private final AtomicLong delivered = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+
+        Lane(JiraWebHook.Listener listener) {
+            this.listener = listener;
+            this.executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new NamedDaemonThreadFactory("jira-listener-" + listener.getClass().getSimpleName()));
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        void offer(final JiraEvent event, int capacity, final long timeoutMillis) {
+            int q;
+            do {
+                q = queued.get();
+                if (q >= Math.max(1, capacity)) {
+                    dropped.incrementAndGet();
+                    LOGGER.log(WARNING, "Queue of {0} is full. Dropping event for issue {1}", new Object[]{getName(), event.getIssue().getKey()});
+                    return;
+                }
+            } while (!queued.compareAndSet(q, q + 1));
+            executor.execute(new Runnable() {
+                public void run() {
+                    queued.decrementAndGet();
+                    deliver(event, timeoutMillis);
+                }
+            });
+        }
+
+        private void deliver(JiraEvent event, long timeoutMillis) {
+            final Thread thread = Thread.currentThread();
+            final Object delivery = new Object();
+            synchronized (this) {
+                current = delivery;
+            }
+            final ScheduledFuture<?> alarm = timeoutMillis <= 0 ? null : watchdog.schedule(new Runnable() {
+                public void run() {
+                    synchronized (Lane.this) {
+                        if (current == delivery) {
+                            timeouts.incrementAndGet();
+                            thread.interrupt();
+                        }
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                listener.onEventReceived(event);
+                delivered.incrementAndGet();
+            } catch (Throwable t) {
+                errors.incrementAndGet();
+                LOGGER.log(WARNING, getName() + " failed to handle event for issue " + event.getIssue().getKey(), t);
+            } finally {
+                if (alarm != null)
+                    alarm.cancel(false);
+                synchronized (this) {
+                    current = null;
+                    Thread.interrupted(); // an interrupt of the watchdog must not reach the next delivery
+                }
+            }
+        }
+
+        public String getName() {
+            return listener.getClass().getName();
+        }
+
+        public int getQueueDepth() {
+            return queued.get();
+        }
+
+        public long getDelivered() {
+            return delivered.get();
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import org.jenkinsci.plugins.trflow.util.LatencyHistogram;
+import org.jenkinsci.plugins.trflow.util.StripedExecutor;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of the webhook pipeline, rendered in the Prometheus text format.
+ * <p/>
+ * Stages, in pipeline order:
+ * <ul>
+ * <li>{@code receive}: the whole webhook request;</li>
+ * <li>{@code parse}: streaming read of the payload, including the {@link JiraEventFilter} decision;</li>
+ * <li>{@code match}: lookup of the matching triggers;</li>
+ * <li>{@code queue}: wait on the scheduling lane of {@link JiraTrigger.DescriptorImpl#getScheduler()};</li>
+ * <li>{@code schedule}: the call to {@code scheduleBuild};</li>
+ * <li>{@code end_to_end}: from the event being read to its build being in the Jenkins queue.</li>
+ * </ul>
+ * The wait on each scheduling lane is also exported per lane, as a total, an average and a maximum.
+ */
+public class JiraWebHookMetrics {
+    private static final String PREFIX = "trflow_jira_webhook_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    final LatencyHistogram receive = new LatencyHistogram();
+    final LatencyHistogram parse = new LatencyHistogram();
+    final LatencyHistogram match = new LatencyHistogram();
+    final LatencyHistogram queue = new LatencyHistogram();
+    final LatencyHistogram schedule = new LatencyHistogram();
+    final LatencyHistogram endToEnd = new LatencyHistogram();
+
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong malformed = new AtomicLong();
+    final AtomicLong triggersMatched = new AtomicLong();
+    final AtomicLong triggersUnmatched = new AtomicLong();
+    final AtomicLong buildsScheduled = new AtomicLong();
+    final AtomicLong buildsAlreadyQueued = new AtomicLong();
+    final AtomicLong queueFull = new AtomicLong();
+    final AtomicLong journalFailures = new AtomicLong();
+
+    void onOutcome(JiraWebHook.Outcome outcome) {
+        if (outcome == JiraWebHook.Outcome.QUEUE_FULL)
+            queueFull.incrementAndGet();
+        else if (outcome == JiraWebHook.Outcome.JOURNAL_FAILED)
+            journalFailures.incrementAndGet();
+    }
+
+    void onScheduled(boolean scheduled, long queuedNanos, long startedNanos, JiraEvent event) {
+        final long now = System.nanoTime();
+        queue.recordNanos(startedNanos - queuedNanos);
+        schedule.recordNanos(now - startedNanos);
+        endToEnd.recordNanos(now - event.getReceivedNanos());
+        (scheduled ? buildsScheduled : buildsAlreadyQueued).incrementAndGet();
+    }
+
+    /**
+     * Writes every metric of the webhook in the Prometheus text exposition format.
+     */
+    void writeTo(PrintWriter w, JiraWebHook hook) {
+        counter(w, "requests_total", "Webhook requests received.", requests.get());
+        counter(w, "malformed_total", "Payloads rejected as malformed.", malformed.get());
+
+        final JiraEventFilter filter = hook.getFilter();
+        help(w, "events_total", "Events read from payloads, by filter decision.", "counter");
+        sample(w, "events_total", "decision=\"accepted\"", filter.getAccepted());
+        sample(w, "events_total", "decision=\"unknown_type\"", filter.getDroppedUnknownType());
+        sample(w, "events_total", "decision=\"no_status_change\"", filter.getDroppedNoStatusChange());
+
+        final JiraWebHookAdmission admission = hook.getAdmission();
+        help(w, "rejected_total", "Accepted events that were rejected, by reason.", "counter");
+        sample(w, "rejected_total", "reason=\"over_budget\"", admission.getShedOverBudget());
+        sample(w, "rejected_total", "reason=\"throttled\"", admission.getShedThrottled());
+        sample(w, "rejected_total", "reason=\"queue_full\"", queueFull.get());
+        sample(w, "rejected_total", "reason=\"journal\"", journalFailures.get());
+        help(w, "shed_by_project_total", "Events shed by admission control, by Jira project.", "counter");
+        for (Map.Entry<String, Long> e : admission.getShedByProject().entrySet())
+            sample(w, "shed_by_project_total", "project=\"" + escape(e.getKey()) + "\"", e.getValue());
+
+        counter(w, "coalesced_total", "Events merged into a later event of the same issue.", hook.getCoalescer().getMerged());
+        counter(w, "triggers_matched_total", "Triggers matched by events.", triggersMatched.get());
+        counter(w, "triggers_unmatched_total", "Triggers of the event's project skipped by their transition rules.", triggersUnmatched.get());
+        help(w, "builds_total", "Outcome of scheduleBuild.", "counter");
+        sample(w, "builds_total", "outcome=\"scheduled\"", buildsScheduled.get());
+        sample(w, "builds_total", "outcome=\"already_queued\"", buildsAlreadyQueued.get());
+
+        final JiraReconciliation reconciliation = JiraReconciliation.get();
+        counter(w, "reconciliation_polls_total", "Polls of the reconciliation JQL.", reconciliation.getPolls());
+        counter(w, "reconciliation_requests_total", "Jira search requests made by the reconciliation.", reconciliation.getRequests());
+        counter(w, "reconciled_total", "Status changes found by the reconciliation instead of the webhook.", reconciliation.getReconciled());
+
+        help(w, "stage_latency_seconds", "Latency of each stage of the webhook pipeline.", "summary");
+        summary(w, "receive", receive);
+        summary(w, "parse", parse);
+        summary(w, "match", match);
+        summary(w, "queue", queue);
+        summary(w, "schedule", schedule);
+        summary(w, "end_to_end", endToEnd);
+
+        final JiraTrigger.DescriptorImpl descriptor = JiraTrigger.DescriptorImpl.get();
+        help(w, "queue_depth", "Current depth of the queues of the webhook pipeline.", "gauge");
+        sample(w, "queue_depth", "queue=\"pending_events\"", admission.getPending());
+        sample(w, "queue_depth", "queue=\"ingestion\"", descriptor.getIngestion().getQueueDepth());
+        sample(w, "queue_depth", "queue=\"coalescer\"", hook.getCoalescer().getPending());
+        final JiraEventJournal journal = hook.getJournal();
+        if (journal != null)
+            sample(w, "queue_depth", "queue=\"journal\"", journal.getPending());
+        for (StripedExecutor.Lane lane : descriptor.getScheduler().getLanes())
+            sample(w, "queue_depth", "queue=\"" + escape(lane.getName()) + "\"", lane.getQueueDepth());
+        for (JiraWebHookListenerDispatcher.Lane lane : hook.getListenerDispatcher().getLanes())
+            sample(w, "queue_depth", "queue=\"listener\",listener=\"" + escape(lane.getName()) + "\"", lane.getQueueDepth());
+
+        help(w, "lane_tasks_total", "Tasks run by each scheduling lane.", "counter");
+        for (StripedExecutor.Lane lane : descriptor.getScheduler().getLanes())
+            sample(w, "lane_tasks_total", "lane=\"" + escape(lane.getName()) + "\"", lane.getExecuted());
+        help(w, "lane_wait_seconds_total", "Time tasks waited on each scheduling lane before running.", "counter");
+        for (StripedExecutor.Lane lane : descriptor.getScheduler().getLanes())
+            w.println(PREFIX + "lane_wait_seconds_total{lane=\"" + escape(lane.getName()) + "\"} " + seconds(lane.getTotalWaitMillis() * 1000));
+        help(w, "lane_wait_seconds_avg", "Average time tasks waited on each scheduling lane.", "gauge");
+        for (StripedExecutor.Lane lane : descriptor.getScheduler().getLanes())
+            w.println(PREFIX + "lane_wait_seconds_avg{lane=\"" + escape(lane.getName()) + "\"} " + seconds(lane.getAverageWaitMillis() * 1000));
+        help(w, "lane_wait_seconds_max", "Longest time a task waited on each scheduling lane.", "gauge");
+        for (StripedExecutor.Lane lane : descriptor.getScheduler().getLanes())
+            w.println(PREFIX + "lane_wait_seconds_max{lane=\"" + escape(lane.getName()) + "\"} " + seconds(lane.getMaxWaitMillis() * 1000));
+
+        help(w, "listener_events_total", "Events handled by each listener, by result.", "counter");
+        for (JiraWebHookListenerDispatcher.Lane lane : hook.getListenerDispatcher().getLanes()) {
+            final String l = "listener=\"" + escape(lane.getName()) + "\"";
+            sample(w, "listener_events_total", l + ",result=\"delivered\"", lane.getDelivered());
+            sample(w, "listener_events_total", l + ",result=\"dropped\"", lane.getDropped());
+            sample(w, "listener_events_total", l + ",result=\"error\"", lane.getErrors());
+            sample(w, "listener_events_total", l + ",result=\"timeout\"", lane.getTimeouts());
+        }
+        w.flush();
+    }
+
+    private static void counter(PrintWriter w, String name, String help, long value) {
+        help(w, name, help, "counter");
+        w.print(PREFIX);
+        w.print(name);
+        w.print(' ');
+        w.println(value);
+    }
+
+    private static void help(PrintWriter w, String name, String help, String type) {
+        w.println("# HELP " + PREFIX + name + " " + help);
+        w.println("# TYPE " + PREFIX + name + " " + type);
+    }
+
+    private static void sample(PrintWriter w, String name, String labels, long value) {
+        w.print(PREFIX);
+        w.print(name);
+        w.print('{');
+        w.print(labels);
+        w.print("} ");
+        w.println(value);
+    }
+
+    private static void summary(PrintWriter w, String stage, LatencyHistogram h) {
+        final String name = PREFIX + "stage_latency_seconds";
+        for (double q : QUANTILES)
+            w.println(name + "{stage=\"" + stage + "\",quantile=\"" + q + "\"} " + seconds(h.getPercentileMicros(q)));
+        w.println(name + "_sum{stage=\"" + stage + "\"} " + seconds(h.getSumMicros()));
+        w.println(name + "_count{stage=\"" + stage + "\"} " + h.getCount());
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ENGLISH, "%.6f", micros / 1e6);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,108 @@
+package org.jenkinsci.plugins.trflow.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+    @Test
+    public void emptyHistogram() {
+        final LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getPercentileMicros(0.5));
+        assertEquals(0, h.getPercentileMicros(0.99));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        final LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 10; i++)
+            h.recordMicros(i);
+        assertEquals(1, h.getPercentileMicros(0));
+        assertEquals(5, h.getPercentileMicros(0.5));
+        assertEquals(9, h.getPercentileMicros(0.9));
+        assertEquals(10, h.getPercentileMicros(1));
+        assertEquals(55, h.getSumMicros());
+        assertEquals(10, h.getMaxMicros());
+    }
+
+    @Test
+    public void percentilesOfAUniformDistribution() {
+        final LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 100000; i++)
+            h.recordMicros(i);
+        assertWithinBucket(50000, h.getPercentileMicros(0.5));
+        assertWithinBucket(90000, h.getPercentileMicros(0.9));
+        assertWithinBucket(99000, h.getPercentileMicros(0.99));
+        assertEquals(100000, h.getPercentileMicros(1));
+    }
+
+    @Test
+    public void percentilesOfALongTailedDistribution() {
+        final Random random = new Random(42);
+        final long[] values = new long[20000];
+        final LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) (1000 * Math.exp(random.nextGaussian() * 2)); // from about 1us to minutes
+            h.recordMicros(values[i]);
+        }
+        Arrays.sort(values);
+        for (double q : new double[]{0.01, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999})
+            assertWithinBucket(values[(int) Math.ceil(q * values.length) - 1], h.getPercentileMicros(q));
+        assertEquals(values[values.length - 1], h.getMaxMicros());
+    }
+
+    @Test
+    public void percentilesNeverExceedTheMaximum() {
+        final LatencyHistogram h = new LatencyHistogram();
+        h.recordMicros(1000);
+        h.recordMicros(1001);
+        assertEquals(1001, h.getPercentileMicros(0.99));
+    }
+
+    @Test
+    public void largeValuesAndNanos() {
+        final LatencyHistogram h = new LatencyHistogram();
+        final long week = TimeUnit.DAYS.toMicros(7);
+        h.recordMicros(week);
+        h.recordNanos(-5); // clock went backwards
+        h.recordNanos(TimeUnit.MILLISECONDS.toNanos(3));
+        assertEquals(3, h.getCount());
+        assertEquals(0, h.getPercentileMicros(0.1));
+        assertWithinBucket(3000, h.getPercentileMicros(0.5));
+        assertEquals(week, h.getPercentileMicros(1));
+    }
+
+    @Test
+    public void concurrentRecording() throws InterruptedException {
+        final LatencyHistogram h = new LatencyHistogram();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= 10000; i++)
+                        h.recordMicros(i);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(40000, h.getCount());
+        assertEquals(4L * 10000 * 10001 / 2, h.getSumMicros());
+        assertWithinBucket(5000, h.getPercentileMicros(0.5));
+    }
+
+    /**
+     * A percentile is reported as the highest value of its bucket, at most 1/16th above the exact value.
+     */
+    private static void assertWithinBucket(long exact, long reported) {
+        assertTrue("expected about " + exact + " but got " + reported, reported >= exact && reported <= exact + exact / 16 + 1);
+    }
+}
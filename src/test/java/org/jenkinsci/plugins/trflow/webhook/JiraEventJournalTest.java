@@ -0,0 +1,182 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A journal is never closed: each test "crashes" it by opening a new journal on the same directory while the old
+ * writer thread is left idle.
+ */
+public class JiraEventJournalTest {
+    static {
+        // small segments, so a few events roll them over
+        System.setProperty(JiraEventJournal.class.getName() + ".segmentSize", "1024");
+    }
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void replaysTheEventsNotDone() throws Exception {
+        final File dir = tmp.newFolder();
+        final JiraEventJournal journal = open(dir);
+        final List<JiraEvent> appended = new ArrayList<JiraEvent>();
+        for (int i = 0; i < 5; i++)
+            appended.add(journal.append(event("TR-" + i, "Open")));
+        journal.markDone(appended.get(1));
+        journal.markDone(appended.get(3));
+        awaitPending(journal, 3);
+
+        final JiraEventJournal reopened = open(dir);
+        final List<JiraEvent> recovered = reopened.recover();
+        assertEquals(3, recovered.size());
+        assertEquals("TR-0", recovered.get(0).getIssue().getKey());
+        assertEquals("TR-2", recovered.get(1).getIssue().getKey());
+        assertEquals("TR-4", recovered.get(2).getIssue().getKey());
+        assertEquals(appended.get(4).getSequence(), recovered.get(2).getSequence());
+        assertEquals("Open", recovered.get(2).getIssue().getPreviousStatus());
+        assertEquals("In Progress", recovered.get(2).getIssue().getStatus());
+        assertTrue(reopened.recover().isEmpty());
+
+        // the sequence carries on, and the replayed events can be marked done
+        assertTrue(reopened.append(event("TR-5", "Open")).getSequence() > appended.get(4).getSequence());
+        for (JiraEvent e : recovered)
+            reopened.markDone(e);
+        awaitPending(reopened, 1);
+        assertEquals(1, open(dir).recover().size());
+    }
+
+    @Test
+    public void reopeningRewritesPendingEventsIntoOneSegment() throws Exception {
+        final File dir = tmp.newFolder();
+        final JiraEventJournal journal = open(dir);
+        final List<JiraEvent> appended = new ArrayList<JiraEvent>();
+        for (int i = 0; i < 40; i++)
+            appended.add(journal.append(event("TR-" + i, "Open")));
+        for (int i = 0; i < 39; i++)
+            journal.markDone(appended.get(i));
+        awaitPending(journal, 1);
+
+        final JiraEventJournal reopened = open(dir);
+        assertEquals(1, segments(dir).length);
+        assertEquals("TR-39", reopened.recover().get(0).getIssue().getKey());
+    }
+
+    @Test
+    public void deletesRolledSegmentsOnceTheirEventsAreDone() throws Exception {
+        final File dir = tmp.newFolder();
+        final JiraEventJournal journal = open(dir);
+        final List<JiraEvent> appended = new ArrayList<JiraEvent>();
+        for (int i = 0; i < 40; i++)
+            appended.add(journal.append(event("TR-" + i, "Open")));
+        assertTrue(segments(dir).length > 1);
+
+        for (JiraEvent e : appended)
+            journal.markDone(e);
+        awaitPending(journal, 0);
+        // compaction runs after each write
+        journal.append(event("TR-40", "Open"));
+        awaitSegments(dir, 1);
+        assertEquals(1, open(dir).recover().size());
+    }
+
+    @Test
+    public void ignoresARecordTornByACrash() throws Exception {
+        final File dir = tmp.newFolder();
+        final JiraEventJournal journal = open(dir);
+        journal.append(event("TR-1", "Open"));
+        awaitPending(journal, 1);
+
+        final File[] segments = segments(dir);
+        final FileOutputStream out = new FileOutputStream(segments[segments.length - 1], true);
+        try {
+            out.write(new byte[]{0, 0, 0, 100, 1, 0, 0}); // length, kind and the start of a sequence number
+        } finally {
+            out.close();
+        }
+
+        final JiraEventJournal reopened = open(dir);
+        final List<JiraEvent> recovered = reopened.recover();
+        assertEquals(1, recovered.size());
+        assertEquals("TR-1", recovered.get(0).getIssue().getKey());
+        reopened.append(event("TR-2", "Open"));
+        assertEquals(2, open(dir).recover().size());
+    }
+
+    @Test
+    public void ignoresTheRestOfASegmentAfterACorruptRecord() throws Exception {
+        final File dir = tmp.newFolder();
+        final JiraEventJournal journal = open(dir);
+        journal.append(event("TR-1", "Open"));
+        journal.append(event("TR-2", "Open"));
+        awaitPending(journal, 2);
+        final File segment = segments(dir)[0];
+
+        // a flipped bit in the last record
+        final RandomAccessFile f = new RandomAccessFile(segment, "rw");
+        try {
+            f.seek(f.length() - 1);
+            final int last = f.read();
+            f.seek(f.length() - 1);
+            f.write(last ^ 1);
+        } finally {
+            f.close();
+        }
+        List<JiraEvent> recovered = open(dir).recover();
+        assertEquals(1, recovered.size());
+        assertEquals("TR-1", recovered.get(0).getIssue().getKey());
+
+        // a length prefix that would not fit in memory, and a negative one
+        for (byte[] garbage : new byte[][]{{0x7f, -1, -1, -1, 0, 0, 0, 0, 1}, {-1, -1, -1, -1, 0, 0, 0, 0, 1}}) {
+            final File[] segments = segments(dir);
+            final FileOutputStream out = new FileOutputStream(segments[segments.length - 1], true);
+            try {
+                out.write(garbage);
+            } finally {
+                out.close();
+            }
+            recovered = open(dir).recover();
+            assertEquals(1, recovered.size());
+        }
+    }
+
+    private static JiraEventJournal open(File dir) throws IOException {
+        final JiraEventJournal journal = new JiraEventJournal(dir);
+        journal.open();
+        return journal;
+    }
+
+    private static JiraEvent event(String key, String previousStatus) {
+        return new JiraEvent(JiraEventType.IssueUpdated, new JiraIssue(key, "Bug", "In Progress", "TR", "Summary of " + key, previousStatus), true);
+    }
+
+    private static File[] segments(File dir) {
+        return dir.listFiles();
+    }
+
+    /**
+     * Done records are written asynchronously.
+     */
+    private static void awaitPending(JiraEventJournal journal, int pending) throws InterruptedException {
+        for (int i = 0; i < 500 && journal.getPending() != pending; i++)
+            Thread.sleep(10);
+        assertEquals(pending, journal.getPending());
+    }
+
+    private static void awaitSegments(File dir, int segments) throws InterruptedException {
+        for (int i = 0; i < 500 && segments(dir).length != segments; i++)
+            Thread.sleep(10);
+        assertEquals(segments, segments(dir).length);
+    }
+}
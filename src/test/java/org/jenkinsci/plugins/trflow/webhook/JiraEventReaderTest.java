@@ -0,0 +1,118 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JiraEventReaderTest {
+    private static final String STATUS_CHANGE = "\"changelog\":{\"items\":[{\"field\":\"status\",\"from\":\"1\",\"fromString\":\"Open\",\"to\":\"3\",\"toString\":\"In Progress\"}]}";
+    private static final String ISSUE = "\"issue\":{\"self\":\"https://jira.example.com/rest/api/2/issue/10001\",\"key\":\"TR-1\",\"fields\":{\"summary\":\"Merge \\\"back\\\" \\u00e9\","
+            + "\"description\":\"ignored {[\",\"issuetype\":{\"name\":\"Bug\"},\"status\":{\"name\":\"In Progress\"},\"project\":{\"key\":\"TR\"},\"labels\":[\"a\",{\"b\":[1,2]}],\"votes\":null}}";
+
+    private final JiraEventFilter filter = new JiraEventFilter();
+
+    @Test
+    public void readsTheSelectedValues() throws IOException {
+        final JiraEvent e = read("{\"webhookEvent\":\"jira:issue_updated\",\"timestamp\":1401710590000," + ISSUE + "," + STATUS_CHANGE + "}");
+        assertEquals(JiraEventType.IssueUpdated, e.getType());
+        assertEquals("TR-1", e.getIssue().getKey());
+        assertEquals("Bug", e.getIssue().getType());
+        assertEquals("In Progress", e.getIssue().getStatus());
+        assertEquals("Open", e.getIssue().getPreviousStatus());
+        assertEquals("TR", e.getIssue().getProjectkey());
+        assertEquals("Merge \"back\" \u00e9", e.getIssue().getSummary());
+        assertTrue(e.hasStatusChanged());
+        assertEquals("https://jira.example.com", e.getSite());
+        assertEquals(1, filter.getAccepted());
+    }
+
+    @Test
+    public void dropsUnknownTypesAndEventsWithoutStatusChange() throws IOException {
+        assertNull(read("{\"webhookEvent\":\"jira:version_released\"," + ISSUE + "}"));
+        assertNull(read("{\"webhookEvent\":\"jira:issue_updated\"," + ISSUE + "}"));
+        assertNull(read("{\"webhookEvent\":\"jira:issue_updated\"," + ISSUE
+                + ",\"changelog\":{\"items\":[{\"field\":\"assignee\",\"from\":\"a\",\"to\":\"b\"}]}}"));
+        assertEquals(1, filter.getDroppedUnknownType());
+        assertEquals(2, filter.getDroppedNoStatusChange());
+        assertEquals(0, filter.getAccepted());
+    }
+
+    @Test
+    public void truncatedReadsStopAtTheFilterDecision() throws IOException {
+        final JiraEventReader r = new JiraEventReader(new StringReader("{\"webhookEvent\":\"jira:version_released\",\"issue\":{\"key\":"), filter, true);
+        assertTrue(r.hasNext());
+        assertNull(r.read());
+        assertEquals("jira:version_released", r.getLastWebhookEvent());
+    }
+
+    @Test
+    public void readsArraysAndNewlineDelimitedPayloads() throws IOException {
+        final String p = "{\"webhookEvent\":\"jira:issue_updated\"," + ISSUE + "," + STATUS_CHANGE + "}";
+        for (String input : new String[]{"[" + p + " , " + p + "]", p + "\n" + p + "\n"}) {
+            final JiraEventReader r = new JiraEventReader(new StringReader(input), filter, false);
+            int n = 0;
+            while (r.hasNext()) {
+                assertEquals("TR-1", r.read().getIssue().getKey());
+                n++;
+            }
+            assertEquals(2, n);
+        }
+        assertFalse(new JiraEventReader(new StringReader("[]"), filter, false).hasNext());
+    }
+
+    @Test
+    public void rejectsMalformedPayloads() throws IOException {
+        assertMalformed("42");
+        assertMalformed("\"issue\"");
+        assertMalformed("{\"webhookEvent\":\"jira:issue_updated\"," + ISSUE.substring(0, 40));
+        assertMalformed("{\"webhookEvent\":\"jira:issue_updated\" \"issue\":{}}");
+        assertMalformed("{\"webhookEvent\":\"jira:issue_updated\",\"issue\":{\"key\":\"TR-1}}");
+        assertMalformed("{\"webhookEvent\":\"jira:issue_updated\",\"issue\":{\"key\":\"TR-\\u00zz\"}}");
+        assertMalformed("{\"webhookEvent\":\"jira:issue_updated\",\"timestamp\":}");
+        assertMalformed("[{\"webhookEvent\":\"jira:issue_updated\"," + ISSUE + "," + STATUS_CHANGE + "};{}]", 1);
+    }
+
+    @Test
+    public void rejectsPayloadsWithoutTheRequiredValues() throws IOException {
+        assertMalformed("{}");
+        assertMalformed("{" + ISSUE + "," + STATUS_CHANGE + "}");
+        assertMalformed("{\"webhookEvent\":\"jira:issue_updated\"," + ISSUE.replace("\"key\":\"TR-1\",", "") + "," + STATUS_CHANGE + "}");
+        assertMalformed("{\"webhookEvent\":\"jira:issue_updated\"," + ISSUE.replace("\"project\":{\"key\":\"TR\"},", "") + "," + STATUS_CHANGE + "}");
+        assertEquals(0, filter.getAccepted());
+    }
+
+    private JiraEvent read(String payload) throws IOException {
+        final JiraEventReader r = new JiraEventReader(new StringReader(payload), filter, false);
+        assertTrue(r.hasNext());
+        final JiraEvent e = r.read();
+        assertFalse(r.hasNext());
+        return e;
+    }
+
+    private void assertMalformed(String payload) throws IOException {
+        assertMalformed(payload, 0);
+    }
+
+    /**
+     * @param valid number of payloads read before the malformed one.
+     */
+    private void assertMalformed(String payload, int valid) throws IOException {
+        final JiraEventReader r = new JiraEventReader(new StringReader(payload), filter, false);
+        try {
+            for (int i = 0; i <= valid; i++) {
+                r.hasNext();
+                r.read();
+            }
+            fail("accepted " + payload);
+        } catch (JiraEventReader.MalformedPayload expected) {
+            // the webhook answers 400
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package org.jenkinsci.plugins.trflow.webhook;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link JiraReconciliation#reconcile} against a stub of the Jira REST API.
+ */
+public class JiraReconciliationTest {
+    private HttpServer server;
+    private String apiUrl;
+    private final List<Object> issues = new CopyOnWriteArrayList<Object>();
+    private final List<String> queries = new CopyOnWriteArrayList<String>();
+    private volatile String timeZone = "UTC";
+
+    private final List<JiraEvent> processed = new ArrayList<JiraEvent>();
+    private final JiraReconciliation reconciliation = new JiraReconciliation() {
+        @Override
+        void process(JiraEvent event) {
+            processed.add(event);
+        }
+    };
+
+    @Before
+    public void startJira() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/rest/api/2/search", new HttpHandler() {
+            public void handle(HttpExchange x) throws IOException {
+                final Map<String, String> params = params(x.getRequestURI().getRawQuery());
+                queries.add(params.get("jql"));
+                final int startAt = Integer.parseInt(params.get("startAt"));
+                final int maxResults = Integer.parseInt(params.get("maxResults"));
+                final JSONArray page = new JSONArray();
+                for (int i = startAt; i < Math.min(issues.size(), startAt + maxResults); i++)
+                    page.add(issues.get(i));
+                respond(x, new JSONObject().element("startAt", startAt).element("total", issues.size()).element("issues", page));
+            }
+        });
+        server.createContext("/rest/api/2/myself", new HttpHandler() {
+            public void handle(HttpExchange x) throws IOException {
+                respond(x, new JSONObject().element("name", "jenkins").element("timeZone", timeZone));
+            }
+        });
+        server.start();
+        apiUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopJira() {
+        server.stop(0);
+    }
+
+    @Test
+    public void initialPollIsOrderedByUpdatedAndOnlyRecords() throws IOException {
+        issues.add(issue("TR-1", "Open", "2014-06-01T10:00:00.000+0000"));
+        issues.add(issue("TR-2", "Done", "2014-06-01T10:05:00.000+0000"));
+
+        final JiraReconciliation.State s = new JiraReconciliation.State();
+        assertEquals(0, reconcile("project = TR ORDER BY key DESC", s));
+
+        assertEquals("(project = TR) ORDER BY updated ASC", queries.get(0));
+        assertEquals("Open", s.getSeen(apiUrl, "TR-1").status);
+        assertEquals("Done", s.getSeen(apiUrl, "TR-2").status);
+        assertEquals(JiraReconciliation.Watermark.parse("2014-06-01T10:05:00.000+0000").millis, s.getWatermark(apiUrl).millis);
+        assertTrue(processed.isEmpty());
+    }
+
+    @Test
+    public void statusChangesAreProcessed() throws IOException {
+        issues.add(issue("TR-1", "Open", "2014-06-01T10:00:00.000+0000"));
+        final JiraReconciliation.State s = new JiraReconciliation.State();
+        reconcile("project = TR", s);
+
+        issues.clear();
+        issues.add(issue("TR-1", "In Progress", "2014-06-01T11:00:00.000+0000"));
+        assertEquals(1, reconcile("project = TR", s));
+
+        assertEquals("(project = TR) AND updated >= \"2014/06/01 09:59\" ORDER BY updated ASC", queries.get(1));
+        assertEquals(1, processed.size());
+        assertEquals("TR-1", processed.get(0).getIssue().getKey());
+        assertEquals("Open", processed.get(0).getIssue().getPreviousStatus());
+        assertEquals("In Progress", processed.get(0).getIssue().getStatus());
+    }
+
+    @Test
+    public void jqlDatesAreInTheTimeZoneOfTheJiraUser() throws IOException {
+        timeZone = "Asia/Tokyo";
+        issues.add(issue("TR-1", "Open", "2014-06-01T10:00:00.000+0000"));
+        final JiraReconciliation.State s = new JiraReconciliation.State();
+        reconcile("project = TR", s);
+        reconcile("project = TR", s);
+
+        assertEquals("(project = TR) AND updated >= \"2014/06/01 18:59\" ORDER BY updated ASC", queries.get(1));
+    }
+
+    @Test
+    public void badIssuesAreSkipped() throws IOException {
+        issues.add(issue("TR-1", "Open", "2014-06-01T10:00:00.000+0000"));
+        issues.add(new JSONObject().element("key", "TR-2").element("fields", new JSONObject()));
+        issues.add("not an issue");
+        issues.add(issue("TR-3", "Open", "2014-06-01T10:02:00.000+0000"));
+
+        final JiraReconciliation.State s = new JiraReconciliation.State();
+        reconcile("project = TR", s);
+
+        assertNotNull(s.getSeen(apiUrl, "TR-1"));
+        assertNull(s.getSeen(apiUrl, "TR-2"));
+        assertNotNull(s.getSeen(apiUrl, "TR-3"));
+        assertEquals(JiraReconciliation.Watermark.parse("2014-06-01T10:02:00.000+0000").millis, s.getWatermark(apiUrl).millis);
+    }
+
+    @Test
+    public void issuesAreRecordedPerJira() throws IOException {
+        issues.add(issue("TR-1", "Open", "2014-06-01T10:00:00.000+0000"));
+        final JiraReconciliation.State s = new JiraReconciliation.State();
+        reconcile("project = TR", s);
+
+        assertNotNull(s.getSeen(apiUrl + "/rest/api/2/", "TR-1"));
+        assertNull(s.getSeen("https://jira.example.com", "TR-1"));
+    }
+
+    @Test
+    public void watermarkOnlyCoversTheConsumedPages() throws IOException {
+        // more issues than a single poll reads, one per minute
+        final long start = JiraReconciliation.Watermark.parse("2014-06-01T00:00:00.000+0000").millis;
+        for (int i = 0; i < 5050; i++)
+            issues.add(issue("TR-" + i, "Open", updated(start + i * 60000L)));
+
+        final JiraReconciliation.State s = new JiraReconciliation.State();
+        reconcile("project = TR", s);
+        assertNotNull(s.getSeen(apiUrl, "TR-4999"));
+        assertNull(s.getSeen(apiUrl, "TR-5000"));
+        assertEquals(start + 4999 * 60000L, s.getWatermark(apiUrl).millis);
+
+        // Jira narrows the next query to the issues updated since then
+        final List<Object> since = new ArrayList<Object>(issues.subList(4998, 5050));
+        issues.clear();
+        issues.addAll(since);
+        reconcile("project = TR", s);
+        assertNotNull(s.getSeen(apiUrl, "TR-5049"));
+        assertEquals(start + 5049 * 60000L, s.getWatermark(apiUrl).millis);
+    }
+
+    private int reconcile(String jql, JiraReconciliation.State s) throws IOException {
+        return reconciliation.reconcile(new JiraSearchClient(apiUrl, "jenkins", "secret"), apiUrl, jql, s);
+    }
+
+    private static JSONObject issue(String key, String status, String updated) {
+        return new JSONObject()
+                .element("key", key)
+                .element("fields", new JSONObject()
+                        .element("summary", "Summary of " + key)
+                        .element("status", new JSONObject().element("name", status))
+                        .element("issuetype", new JSONObject().element("name", "Bug"))
+                        .element("project", new JSONObject().element("key", "TR"))
+                        .element("updated", updated));
+    }
+
+    private static String updated(long millis) {
+        final SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ", Locale.ENGLISH);
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return f.format(new Date(millis));
+    }
+
+    private static Map<String, String> params(String query) throws IOException {
+        final Map<String, String> r = new HashMap<String, String>();
+        for (String p : query.split("&")) {
+            final int eq = p.indexOf('=');
+            r.put(URLDecoder.decode(p.substring(0, eq), "UTF-8"), URLDecoder.decode(p.substring(eq + 1), "UTF-8"));
+        }
+        return r;
+    }
+
+    private static void respond(HttpExchange x, JSONObject body) throws IOException {
+        final byte[] bytes = body.toString().getBytes("UTF-8");
+        x.getResponseHeaders().add("Content-Type", "application/json");
+        x.sendResponseHeaders(200, bytes.length);
+        final OutputStream out = x.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}